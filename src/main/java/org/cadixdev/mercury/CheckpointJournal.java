@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2018 Cadix Development (https://www.cadixdev.org)
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which accompanies this distribution,
+ * and is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.cadixdev.mercury;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32C;
+
+/**
+ * Records the files a rewrite has completed in the output directory, so
+ * an interrupted rewrite can resume where it stopped. The journal is
+ * deleted once the rewrite finished successfully.
+ *
+ * <p>Each line contains the path of a source file, the hash of its
+ * content, the path of its output, the dependencies the processors
+ * recorded for it and the source types it declares and refers to. Lines are only added after the output was written, and
+ * a line cut off by the interruption is ignored. A completed file is only
+ * skipped if its dependencies still resolve to the same values, so output
+ * written with different mappings is not reused.</p>
+ */
+final class CheckpointJournal implements AutoCloseable {
+
+    static final String FILE_NAME = ".mercury-checkpoint";
+
+    private static final String HEADER = "# Mercury checkpoint ";
+    private static final char SEPARATOR = '\t';
+
+    private final Path file;
+    private final Path outputDir;
+    // The files completed by the interrupted run, by source path
+    private final Map<String, String[]> completed;
+    private final BufferedWriter writer;
+
+    private CheckpointJournal(Path file, Path outputDir, Map<String, String[]> completed, BufferedWriter writer) {
+        this.file = file;
+        this.outputDir = outputDir;
+        this.completed = completed;
+        this.writer = writer;
+    }
+
+    /**
+     * Opens the journal in the given output directory, continuing the
+     * journal of an interrupted run with the same configuration.
+     *
+     * @param outputDir The output directory
+     * @param fingerprint The fingerprint of the current configuration
+     * @return The journal
+     * @throws IOException If the journal could not be read or created
+     */
+    static CheckpointJournal open(Path outputDir, String fingerprint) throws IOException {
+        Path file = outputDir.resolve(FILE_NAME);
+        Map<String, String[]> completed = new HashMap<>();
+        boolean resume = false;
+
+        if (Files.isRegularFile(file)) {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                resume = (HEADER + fingerprint).equals(reader.readLine());
+                String line;
+                while (resume && (line = reader.readLine()) != null) {
+                    String[] parts = line.split(String.valueOf(SEPARATOR), -1);
+                    if (parts.length == 4) {
+                        completed.put(parts[0], parts);
+                    }
+                }
+            }
+        }
+
+        Files.createDirectories(outputDir);
+        BufferedWriter writer;
+        if (resume) {
+            writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+            // The last line may have been cut off
+            writer.newLine();
+        } else {
+            completed.clear();
+            writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+            writer.write(HEADER + fingerprint);
+            writer.newLine();
+        }
+        writer.flush();
+
+        return new CheckpointJournal(file, outputDir, completed, writer);
+    }
+
+    /**
+     * Removes the files which were completed by the interrupted run and
+     * did not change since. If the run is incremental, their entries are
+     * added to its index.
+     *
+     * @param run The current run
+     * @param sourceFiles The source files of the run
+     * @param processors The processors of the run
+     * @return The source files which still need to be processed
+     * @throws IOException If a source file could not be read
+     */
+    String[] select(MercuryRun run, String[] sourceFiles, List<SourceProcessor> processors) throws IOException {
+        if (this.completed.isEmpty()) {
+            return sourceFiles;
+        }
+
+        List<String> result = new ArrayList<>();
+        for (String sourceFile : sourceFiles) {
+            String sourcePath = run.relativize(Paths.get(sourceFile));
+            IncrementalIndex.Entry entry = getCompleted(sourcePath, Paths.get(sourceFile));
+            if (entry != null && IncrementalIndex.isUpToDate(entry, processors)) {
+                run.outputs.put(sourcePath, entry.outputPath());
+                if (run.index != null) {
+                    run.index.put(sourcePath, entry);
+                }
+            } else {
+                result.add(sourceFile);
+            }
+        }
+        return result.toArray(new String[0]);
+    }
+
+    @Nullable
+    private IncrementalIndex.Entry getCompleted(String sourcePath, Path sourceFile) throws IOException {
+        String[] parts = this.completed.get(sourcePath);
+        if (parts == null || !parts[1].equals(hash(sourceFile)) || !Files.isRegularFile(this.outputDir.resolve(parts[2]))) {
+            return null;
+        }
+
+        List<Map<String, String>> dependencies;
+        Set<String> types;
+        Set<String> sourceDependencies;
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Base64.getDecoder().decode(parts[3])))) {
+            dependencies = IncrementalIndex.readDependencies(in);
+            types = IncrementalIndex.readStrings(in);
+            sourceDependencies = IncrementalIndex.readStrings(in);
+        } catch (IllegalArgumentException | IOException e) {
+            // Cut off by the interruption
+            return null;
+        }
+        return IncrementalIndex.createEntry(sourceFile, parts[2], dependencies, types, sourceDependencies);
+    }
+
+    /**
+     * Records that the output of a file was written.
+     *
+     * @param sourcePath The path of the source file, relative to the source directory
+     * @param sourceFile The source file
+     * @param entry The output path and dependencies of the file
+     * @throws IOException If the journal could not be written
+     */
+    void complete(String sourcePath, Path sourceFile, IncrementalIndex.Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            IncrementalIndex.writeDependencies(out, entry.dependencies());
+            IncrementalIndex.writeStrings(out, entry.types());
+            IncrementalIndex.writeStrings(out, entry.sourceDependencies());
+        }
+
+        String line = sourcePath + SEPARATOR + hash(sourceFile) + SEPARATOR + entry.outputPath()
+                + SEPARATOR + Base64.getEncoder().encodeToString(bytes.toByteArray());
+        synchronized (this.writer) {
+            this.writer.write(line);
+            this.writer.newLine();
+            // Each completed file should survive the process being killed
+            this.writer.flush();
+        }
+    }
+
+    private static String hash(Path file) throws IOException {
+        CRC32C crc = new CRC32C();
+        byte[] buffer = new byte[8192];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        }
+        return Long.toHexString(crc.getValue()) + '-' + Long.toHexString(Files.size(file));
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.writer.close();
+    }
+
+    /**
+     * Closes and deletes the journal after the run completed.
+     *
+     * @throws IOException If the journal could not be deleted
+     */
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(this.file);
+    }
+
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2018 Cadix Development (https://www.cadixdev.org)
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which accompanies this distribution,
+ * and is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.cadixdev.mercury;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitOption;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * An index of the packages provided by each classpath entry, used to only
+ * pass the entries to JDT which can satisfy references of the sources.
+ */
+final class ClassPathIndex {
+
+    private static final String CLASS_EXTENSION = ".class";
+    private static final String VERSIONS_PREFIX = "META-INF/versions/";
+
+    private final List<Path> classPath;
+    private final Map<Path, Set<String>> packages;
+
+    private ClassPathIndex(List<Path> classPath, Map<Path, Set<String>> packages) {
+        this.classPath = classPath;
+        this.packages = packages;
+    }
+
+    static ClassPathIndex build(List<Path> classPath) throws IOException {
+        Map<Path, Set<String>> packages = new HashMap<>();
+        for (Path entry : classPath) {
+            packages.put(entry, Files.isDirectory(entry) ? indexDirectory(entry) : indexJar(entry));
+        }
+        return new ClassPathIndex(new ArrayList<>(classPath), packages);
+    }
+
+    boolean isFor(List<Path> classPath) {
+        return this.classPath.equals(classPath);
+    }
+
+    /**
+     * Returns the classpath entries which provide any of the given packages,
+     * in their original order. Entries providing classes in the default
+     * package are always kept.
+     *
+     * @param names The package names possibly referenced by the sources
+     * @return The pruned classpath
+     */
+    List<Path> prune(Set<String> names) {
+        List<Path> result = new ArrayList<>();
+        for (Path entry : this.classPath) {
+            for (String provided : this.packages.get(entry)) {
+                if (provided.isEmpty() || names.contains(provided)) {
+                    result.add(entry);
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static Set<String> indexJar(Path jar) throws IOException {
+        Set<String> packages = new HashSet<>();
+
+        // Only reads the central directory of the archive
+        try (ZipFile zip = new ZipFile(jar.toFile())) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                String name = entries.nextElement().getName();
+                if (!name.endsWith(CLASS_EXTENSION)) {
+                    continue;
+                }
+
+                if (name.startsWith(VERSIONS_PREFIX)) {
+                    int versionEnd = name.indexOf('/', VERSIONS_PREFIX.length());
+                    if (versionEnd == -1) {
+                        continue;
+                    }
+                    name = name.substring(versionEnd + 1);
+                }
+
+                addPackage(packages, name);
+            }
+        }
+
+        return packages;
+    }
+
+    private static Set<String> indexDirectory(Path dir) throws IOException {
+        Set<String> packages = new HashSet<>();
+        try (Stream<Path> files = Files.walk(dir, FileVisitOption.FOLLOW_LINKS)) {
+            files.filter(p -> p.getFileName() != null && p.getFileName().toString().endsWith(CLASS_EXTENSION))
+                    .forEach(p -> {
+                        StringBuilder name = new StringBuilder();
+                        for (Path part : dir.relativize(p)) {
+                            if (name.length() > 0) {
+                                name.append('/');
+                            }
+                            name.append(part);
+                        }
+                        addPackage(packages, name.toString());
+                    });
+        }
+        return packages;
+    }
+
+    private static void addPackage(Set<String> packages, String classFile) {
+        if (classFile.endsWith("module-info.class") || classFile.endsWith("package-info.class")) {
+            return;
+        }
+
+        int index = classFile.lastIndexOf('/');
+        packages.add(index == -1 ? "" : classFile.substring(0, index).replace('/', '.'));
+    }
+
+    /**
+     * Collects every identifier and qualified name in the given source
+     * files, together with every prefix of each qualified name. This covers
+     * all names the sources could use to refer to a package or type, e.g.
+     * in package declarations, imports and fully qualified references.
+     * Comments and literals are skipped.
+     *
+     * @param sourceFiles The source files to scan
+     * @param encoding The encoding of the source files
+     * @return The possibly referenced names
+     * @throws IOException If a source file could not be read
+     */
+    static Set<String> collectNames(String[] sourceFiles, Charset encoding) throws IOException {
+        Set<String> names = new HashSet<>();
+        StringBuilder name = new StringBuilder();
+
+        for (String sourceFile : sourceFiles) {
+            String source = new String(Files.readAllBytes(Paths.get(sourceFile)), encoding);
+            int length = source.length();
+            boolean dot = false;
+            name.setLength(0);
+
+            for (int i = 0; i < length; i++) {
+                char c = source.charAt(i);
+
+                if (Character.isJavaIdentifierStart(c)) {
+                    int start = i;
+                    while (i + 1 < length && Character.isJavaIdentifierPart(source.charAt(i + 1))) {
+                        i++;
+                    }
+
+                    if (dot) {
+                        name.append('.');
+                    } else {
+                        name.setLength(0);
+                    }
+                    name.append(source, start, i + 1);
+                    names.add(name.toString());
+                    dot = false;
+                } else if (c == '.') {
+                    dot = name.length() > 0;
+                } else if (c == '/' && i + 1 < length && source.charAt(i + 1) == '/') {
+                    i = source.indexOf('\n', i);
+                    if (i == -1) {
+                        break;
+                    }
+                } else if (c == '/' && i + 1 < length && source.charAt(i + 1) == '*') {
+                    i = source.indexOf("*/", i + 2);
+                    if (i == -1) {
+                        break;
+                    }
+                    i++;
+                } else if (c == '"' || c == '\'') {
+                    i = skipLiteral(source, i, c);
+                    name.setLength(0);
+                    dot = false;
+                } else if (!Character.isWhitespace(c)) {
+                    name.setLength(0);
+                    dot = false;
+                }
+            }
+        }
+
+        return names;
+    }
+
+    private static int skipLiteral(String source, int start, char quote) {
+        int length = source.length();
+        if (quote == '"' && source.startsWith("\"\"\"", start)) {
+            // Text block
+            int end = source.indexOf("\"\"\"", start + 3);
+            while (end != -1 && source.charAt(end - 1) == '\\') {
+                end = source.indexOf("\"\"\"", end + 1);
+            }
+            return end == -1 ? length : end + 2;
+        }
+
+        for (int i = start + 1; i < length; i++) {
+            char c = source.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == quote || c == '\n') {
+                return i;
+            }
+        }
+        return length;
+    }
+
+}
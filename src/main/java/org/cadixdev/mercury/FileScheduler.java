@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2018 Cadix Development (https://www.cadixdev.org)
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which accompanies this distribution,
+ * and is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.cadixdev.mercury;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * Splits the source files of a run into batches for the parser threads,
+ * balanced by their estimated cost. The cost of a file is the time it took
+ * in a previous run if it was recorded, and its size otherwise.
+ *
+ * <p>Files of the same directory are kept together where possible, since
+ * they likely refer to each other and a parser resolves the types of its own
+ * batch for free. The batches are assigned longest first to the cheapest
+ * batch, and there are a few more batches than threads, so threads that
+ * finish early take over the remaining batches.</p>
+ */
+final class FileScheduler {
+
+    private static final int BATCHES_PER_THREAD = 3;
+    private static final char SEPARATOR = '\t';
+
+    private FileScheduler() {
+    }
+
+    /**
+     * Splits the source files into batches.
+     *
+     * @param run The current run
+     * @param sourceFiles The source files, in the order they were found
+     * @param threads The number of parser threads
+     * @param durations The time spent on each file in a previous run, by source path
+     * @return The batches, most expensive first
+     * @throws IOException If the size of a file could not be read
+     */
+    static String[][] schedule(MercuryRun run, String[] sourceFiles, int threads, Map<String, Long> durations) throws IOException {
+        return schedule(sourceFiles, estimate(run, sourceFiles, durations), threads);
+    }
+
+    /**
+     * Splits the source files into batches by the given costs.
+     *
+     * @param sourceFiles The source files, in the order they were found
+     * @param costs The estimated cost of each source file
+     * @param threads The number of parser threads
+     * @return The batches, most expensive first
+     */
+    static String[][] schedule(String[] sourceFiles, long[] costs, int threads) {
+        int batchCount = Math.min(sourceFiles.length, threads * BATCHES_PER_THREAD);
+
+        long total = 0;
+        for (long cost : costs) {
+            total += cost;
+        }
+        long target = Math.max(1, total / batchCount);
+
+        // Group the files by directory, splitting groups that are too expensive for a single batch
+        List<Group> groups = new ArrayList<>();
+        Group group = null;
+        for (int i = 0; i < sourceFiles.length; i++) {
+            Path parent = Paths.get(sourceFiles[i]).getParent();
+            if (group == null || !Objects.equals(group.parent, parent) || group.cost + costs[i] > target) {
+                group = new Group(parent);
+                groups.add(group);
+            }
+            group.files.add(sourceFiles[i]);
+            group.cost += costs[i];
+        }
+
+        // Longest processing time first
+        groups.sort(Comparator.comparingLong((Group g) -> g.cost).reversed());
+        Group[] batches = new Group[batchCount];
+        PriorityQueue<Group> cheapest = new PriorityQueue<>(batchCount, Comparator.comparingLong(g -> g.cost));
+        for (int i = 0; i < batchCount; i++) {
+            batches[i] = new Group(null);
+            cheapest.add(batches[i]);
+        }
+        for (Group g : groups) {
+            Group batch = cheapest.poll();
+            batch.files.addAll(g.files);
+            batch.cost += g.cost;
+            cheapest.add(batch);
+        }
+
+        // Start with the most expensive batches, so they don't end up last
+        Arrays.sort(batches, Comparator.comparingLong((Group g) -> g.cost).reversed());
+        return Arrays.stream(batches)
+                .filter(batch -> !batch.files.isEmpty())
+                .map(batch -> batch.files.stream().sorted().toArray(String[]::new))
+                .toArray(String[][]::new);
+    }
+
+    private static long[] estimate(MercuryRun run, String[] sourceFiles, Map<String, Long> durations) throws IOException {
+        long[] sizes = new long[sourceFiles.length];
+        long knownSize = 0;
+        long knownDuration = 0;
+        for (int i = 0; i < sourceFiles.length; i++) {
+            sizes[i] = Math.max(1, Files.size(Paths.get(sourceFiles[i])));
+            Long duration = durations.get(run.relativize(Paths.get(sourceFiles[i])));
+            if (duration != null) {
+                knownSize += sizes[i];
+                knownDuration += duration;
+            }
+        }
+
+        // Estimate the files without recorded time by the time per byte of the others
+        double timePerByte = knownSize > 0 ? (double) knownDuration / knownSize : 1;
+        long[] costs = new long[sourceFiles.length];
+        for (int i = 0; i < sourceFiles.length; i++) {
+            Long duration = durations.get(run.relativize(Paths.get(sourceFiles[i])));
+            costs[i] = Math.max(1, duration != null ? duration : (long) (sizes[i] * timePerByte));
+        }
+        return costs;
+    }
+
+    /**
+     * Reads the time spent on each file recorded by a previous run.
+     *
+     * @param path The profile file
+     * @return The time in nanoseconds by source path, empty if there is no profile
+     * @throws IOException If the profile could not be read
+     */
+    static Map<String, Long> readProfile(@Nullable Path path) throws IOException {
+        Map<String, Long> durations = new HashMap<>();
+        if (path == null || !Files.isRegularFile(path)) {
+            return durations;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int index = line.indexOf(SEPARATOR);
+                if (index != -1) {
+                    try {
+                        durations.put(line.substring(index + 1), Long.parseLong(line.substring(0, index)));
+                    } catch (NumberFormatException ignored) {
+                        // Skip malformed lines, the profile is only an estimate
+                    }
+                }
+            }
+        }
+        return durations;
+    }
+
+    /**
+     * Writes the time spent on each file, keeping the times of files that
+     * were not processed in this run.
+     *
+     * @param path The profile file
+     * @param previous The times of the previous profile
+     * @param durations The times of this run
+     * @throws IOException If the profile could not be written
+     */
+    static void writeProfile(Path path, Map<String, Long> previous, Map<String, Long> durations) throws IOException {
+        Map<String, Long> merged = new TreeMap<>(previous);
+        merged.putAll(durations);
+
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Long> entry : merged.entrySet()) {
+                writer.write(entry.getValue() + String.valueOf(SEPARATOR) + entry.getKey());
+                writer.write('\n');
+            }
+        }
+    }
+
+    private static final class Group {
+
+        final Path parent;
+        final List<String> files = new ArrayList<>();
+        long cost;
+
+        Group(@Nullable Path parent) {
+            this.parent = parent;
+        }
+
+    }
+
+}
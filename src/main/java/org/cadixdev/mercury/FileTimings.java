@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2018 Cadix Development (https://www.cadixdev.org)
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which accompanies this distribution,
+ * and is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.cadixdev.mercury;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Map;
+
+/**
+ * The time spent on a single source file, see
+ * {@link Mercury#setSlowFileThreshold(Duration)}.
+ *
+ * @param sourceFile The source file
+ * @param size The size of the source file in bytes
+ * @param parse The time spent resolving the bindings of the file, plus an even
+ *     share of setting up the compiler and parsing the files of its batch
+ * @param processors The time spent in each processor, by class name
+ * @param rewrite The time spent computing the changes of the AST
+ * @param importRewrite The time spent computing the changes of the imports
+ * @param write The time spent writing the output
+ */
+public record FileTimings(Path sourceFile, long size, Duration parse, Map<String, Duration> processors,
+                          Duration rewrite, Duration importRewrite, Duration write) {
+
+    public Duration total() {
+        Duration total = this.parse.plus(this.rewrite).plus(this.importRewrite).plus(this.write);
+        for (Duration duration : this.processors.values()) {
+            total = total.plus(duration);
+        }
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder()
+                .append(this.sourceFile).append(" (").append(this.size).append(" bytes): ")
+                .append(format(total())).append(" total, parse ").append(format(this.parse));
+        for (Map.Entry<String, Duration> processor : this.processors.entrySet()) {
+            builder.append(", ").append(processor.getKey()).append(' ').append(format(processor.getValue()));
+        }
+        return builder.append(", rewrite ").append(format(this.rewrite))
+                .append(", imports ").append(format(this.importRewrite))
+                .append(", write ").append(format(this.write))
+                .toString();
+    }
+
+    private static String format(Duration duration) {
+        return duration.toMillis() + " ms";
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2018 Cadix Development (https://www.cadixdev.org)
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which accompanies this distribution,
+ * and is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.cadixdev.mercury;
+
+import org.eclipse.core.runtime.NullProgressMonitor;
+
+import java.time.Duration;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Enforces the {@link Mercury#getFileTimeout() time budget} of each file.
+ * A single timer thread marks the budget of a file as expired, and the
+ * compiler and processors stop once they check their monitor. Nothing is
+ * interrupted, since interrupting a thread would also close the channels
+ * it writes to.
+ */
+final class FileWatchdog implements AutoCloseable {
+
+    private final Duration timeout;
+    private final ScheduledThreadPoolExecutor timer;
+
+    FileWatchdog(Duration timeout) {
+        this.timeout = timeout;
+        this.timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "Mercury watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Most files finish in time, don't keep their timers around
+        this.timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Creates the monitor for a single call of the compiler. The compiler
+     * parses all files before it resolves the first one, so the budget of
+     * the first file covers the parsing of all files.
+     *
+     * @param files The number of files passed to the compiler
+     * @return The monitor
+     */
+    Monitor createMonitor(int files) {
+        return new Monitor(this.timeout.multipliedBy(Math.max(1, files)));
+    }
+
+    /**
+     * Creates the exception reported for a file that timed out.
+     *
+     * @param cause The exception that canceled the file
+     * @return The exception to report
+     */
+    TimeoutException timeout(Throwable cause) {
+        TimeoutException e = new TimeoutException("Exceeded the time budget of " + this.timeout.toMillis() + " ms");
+        e.initCause(cause);
+        return e;
+    }
+
+    @Override
+    public void close() {
+        this.timer.shutdownNow();
+    }
+
+    final class Monitor extends NullProgressMonitor {
+
+        private volatile Budget budget;
+
+        private Monitor(Duration first) {
+            this.budget = new Budget(first);
+        }
+
+        /**
+         * Starts the budget of the next file.
+         */
+        void restart() {
+            this.budget.cancel();
+            this.budget = new Budget(FileWatchdog.this.timeout);
+        }
+
+        boolean isTimedOut() {
+            return this.budget.expired;
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return this.budget.expired || super.isCanceled();
+        }
+
+        void stop() {
+            this.budget.cancel();
+        }
+
+    }
+
+    private final class Budget implements Runnable {
+
+        // Each file has its own flag, so a late timer can't cancel the next file
+        private volatile boolean expired;
+        private final ScheduledFuture<?> future;
+
+        Budget(Duration timeout) {
+            this.future = FileWatchdog.this.timer.schedule(this, timeout.toNanos(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void run() {
+            this.expired = true;
+        }
+
+        void cancel() {
+            this.future.cancel(false);
+        }
+
+    }
+
+}
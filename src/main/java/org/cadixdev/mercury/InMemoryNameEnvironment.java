@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2018 Cadix Development (https://www.cadixdev.org)
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which accompanies this distribution,
+ * and is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.cadixdev.mercury;
+
+import net.fabricmc.tinyremapper.TinyRemapper;
+import org.jetbrains.annotations.Nullable;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.ClassNode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileVisitOption;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Classes held in memory, which are used to resolve bindings in addition to
+ * {@link Mercury#getClassPath()}. This allows sharing the classes that were
+ * already read by another tool, such as the inputs of a tiny-remapper
+ * instance using {@link #createAnalyzeVisitorProvider()}, instead of listing
+ * the same jars on the classpath again.
+ *
+ * <p>Install it using {@link Mercury#setNameEnvironment(InMemoryNameEnvironment)}.
+ * The classes are looked up before the classpath of the {@link Mercury} instance.
+ * JDT only reads classes from files, so they are written to a single
+ * temporary jar, which is reused until more classes are added.</p>
+ */
+public final class InMemoryNameEnvironment {
+
+    private static final String CLASS_EXTENSION = ".class";
+
+    private final Map<String, byte[]> classes = new ConcurrentHashMap<>();
+    private final Set<String> packages = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger version = new AtomicInteger();
+
+    @Nullable
+    private Path jar;
+    private int jarVersion;
+
+    /**
+     * Adds a class to the environment.
+     *
+     * @param internalName The internal name of the class, e.g. {@code java/lang/Object}
+     * @param bytes The class file bytes, which must not be modified afterwards
+     */
+    public void addClass(String internalName, byte[] bytes) {
+        this.classes.put(Objects.requireNonNull(internalName, "internalName"), Objects.requireNonNull(bytes, "bytes"));
+
+        for (int i = internalName.lastIndexOf('/'); i > 0; i = internalName.lastIndexOf('/', i - 1)) {
+            if (!this.packages.add(internalName.substring(0, i))) {
+                break;
+            }
+        }
+        this.version.incrementAndGet();
+    }
+
+    /**
+     * Creates a provider for {@link TinyRemapper.Builder#extraAnalyzeVisitor(TinyRemapper.AnalyzeVisitorProvider)},
+     * which adds every class tiny-remapper reads to this environment. The
+     * classes are copied from the events of the analysis, so tiny-remapper
+     * does not have to keep the class bytes around.
+     *
+     * @return The analyze visitor provider
+     */
+    public TinyRemapper.AnalyzeVisitorProvider createAnalyzeVisitorProvider() {
+        return (mrjVersion, className, next) -> new ClassNode(Opcodes.ASM9) {
+            @Override
+            public void visitEnd() {
+                super.visitEnd();
+
+                ClassWriter writer = new ClassWriter(0);
+                this.accept(writer);
+                addClass(this.name, writer.toByteArray());
+
+                this.accept(next);
+            }
+        };
+    }
+
+    /**
+     * Reads all classes of the given jar into memory.
+     *
+     * @param jar The jar to read
+     * @throws IOException If the jar could not be read
+     */
+    public void addJar(Path jar) throws IOException {
+        try (ZipFile zip = new ZipFile(jar.toFile())) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (!name.endsWith(CLASS_EXTENSION) || name.startsWith("META-INF/")) {
+                    continue;
+                }
+
+                try (InputStream in = zip.getInputStream(entry)) {
+                    addClass(name.substring(0, name.length() - CLASS_EXTENSION.length()), in.readAllBytes());
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads all classes in the given directory into memory.
+     *
+     * @param dir The root directory of the classes
+     * @throws IOException If a class could not be read
+     */
+    public void addDirectory(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir, FileVisitOption.FOLLOW_LINKS)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String fileName = file.getFileName() != null ? file.getFileName().toString() : "";
+                if (!fileName.endsWith(CLASS_EXTENSION)) {
+                    continue;
+                }
+
+                StringBuilder name = new StringBuilder();
+                for (Path part : dir.relativize(file)) {
+                    if (name.length() > 0) {
+                        name.append('/');
+                    }
+                    name.append(part);
+                }
+                name.setLength(name.length() - CLASS_EXTENSION.length());
+                addClass(name.toString(), Files.readAllBytes(file));
+            }
+        }
+    }
+
+    @Nullable
+    public byte[] getClassBytes(String internalName) {
+        return this.classes.get(internalName);
+    }
+
+    public boolean isPackage(String internalName) {
+        return this.packages.contains(internalName);
+    }
+
+    /**
+     * Gets a jar containing all classes of the environment, which is
+     * written again if classes were added since it was last written.
+     *
+     * @return The jar file
+     * @throws IOException If the jar could not be written
+     */
+    synchronized Path getJar() throws IOException {
+        int version = this.version.get();
+        if (this.jar != null && this.jarVersion == version) {
+            return this.jar;
+        }
+
+        Path jar = Files.createTempFile("mercury", ".jar");
+        jar.toFile().deleteOnExit();
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(jar))) {
+            // The jar is temporary, compressing it is not worth the time
+            out.setLevel(Deflater.NO_COMPRESSION);
+            for (Map.Entry<String, byte[]> entry : this.classes.entrySet()) {
+                out.putNextEntry(new ZipEntry(entry.getKey() + CLASS_EXTENSION));
+                out.write(entry.getValue());
+                out.closeEntry();
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(jar);
+            throw e;
+        }
+
+        if (this.jar != null) {
+            // Runs which are still parsing may keep it open, it is deleted on exit then
+            try {
+                Files.deleteIfExists(this.jar);
+            } catch (IOException ignored) {
+            }
+        }
+        this.jar = jar;
+        this.jarVersion = version;
+        return jar;
+    }
+
+}
@@ -0,0 +1,391 @@
+/*
+ * Copyright (c) 2018 Cadix Development (https://www.cadixdev.org)
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which accompanies this distribution,
+ * and is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.cadixdev.mercury;
+
+import org.eclipse.jdt.core.dom.ASTVisitor;
+import org.eclipse.jdt.core.dom.AbstractTypeDeclaration;
+import org.eclipse.jdt.core.dom.CompilationUnit;
+import org.eclipse.jdt.core.dom.IBinding;
+import org.eclipse.jdt.core.dom.IMethodBinding;
+import org.eclipse.jdt.core.dom.ITypeBinding;
+import org.eclipse.jdt.core.dom.IVariableBinding;
+import org.eclipse.jdt.core.dom.PackageDeclaration;
+import org.eclipse.jdt.core.dom.SimpleName;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records, for each source file of a rewrite, the dependencies the
+ * processors looked up while rewriting it, and the other source files
+ * declaring the bindings it refers to. On the next run, files whose
+ * source, dependencies and referenced source files are unchanged keep
+ * their previous output.
+ */
+final class IncrementalIndex {
+
+    private static final int MAGIC = 0x4D524349; // MRCI
+    private static final int VERSION = 2;
+
+    /**
+     * The state of a source file when it was last rewritten.
+     *
+     * @param size The size of the source file
+     * @param lastModified The modification time of the source file
+     * @param outputPath The path of the output, relative to the output directory
+     * @param dependencies The dependencies recorded by each processor
+     * @param types The top-level types declared by the source file
+     * @param sourceDependencies The top-level types of other source files
+     *     declaring bindings the source file refers to
+     */
+    record Entry(long size, long lastModified, String outputPath, List<Map<String, String>> dependencies,
+            Set<String> types, Set<String> sourceDependencies) {
+    }
+
+    private final String fingerprint;
+    private final Path outputDir;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    IncrementalIndex(String fingerprint, Path outputDir) {
+        this.fingerprint = fingerprint;
+        this.outputDir = outputDir.toAbsolutePath();
+    }
+
+    void put(String sourcePath, Entry entry) {
+        this.entries.put(sourcePath, entry);
+    }
+
+    void remove(String sourcePath) {
+        this.entries.remove(sourcePath);
+    }
+
+    static Entry createEntry(Path sourceFile, String outputPath, List<Map<String, String>> dependencies,
+            Set<String> types, Set<String> sourceDependencies) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(sourceFile, BasicFileAttributes.class);
+        return new Entry(attributes.size(), attributes.lastModifiedTime().toMillis(), outputPath, dependencies,
+                types, sourceDependencies);
+    }
+
+    /**
+     * Collects the top-level types declared by a file and the top-level
+     * source types declaring the bindings it refers to. References are
+     * only found if bindings were resolved.
+     *
+     * @param ast The parsed file
+     * @param types Receives the declared types
+     * @param sourceDependencies Receives the referenced types of other source files
+     */
+    static void collectTypes(CompilationUnit ast, Set<String> types, Set<String> sourceDependencies) {
+        PackageDeclaration packageDeclaration = ast.getPackage();
+        String prefix = packageDeclaration != null ? packageDeclaration.getName().getFullyQualifiedName() + '.' : "";
+        for (Object type : ast.types()) {
+            types.add(prefix + ((AbstractTypeDeclaration) type).getName().getIdentifier());
+        }
+
+        // Javadoc references are rewritten too, so they count as well
+        ast.accept(new ASTVisitor(true) {
+            @Override
+            public boolean visit(SimpleName node) {
+                ITypeBinding type = getDeclaringType(node.resolveBinding());
+                if (type == null || type.isTypeVariable() || type.isCapture() || type.isWildcardType()) {
+                    return false;
+                }
+
+                type = type.getElementType() != null ? type.getElementType() : type;
+                while (type.getDeclaringClass() != null) {
+                    type = type.getDeclaringClass();
+                }
+                type = type.getErasure();
+                if (type.isFromSource() && !types.contains(type.getQualifiedName())) {
+                    sourceDependencies.add(type.getQualifiedName());
+                }
+                return false;
+            }
+        });
+    }
+
+    @Nullable
+    private static ITypeBinding getDeclaringType(@Nullable IBinding binding) {
+        if (binding instanceof ITypeBinding type) {
+            return type;
+        } else if (binding instanceof IMethodBinding method) {
+            return method.getDeclaringClass();
+        } else if (binding instanceof IVariableBinding variable && variable.isField()) {
+            return variable.getDeclaringClass();
+        }
+        return null;
+    }
+
+    /**
+     * Takes over the entries of all files which are unchanged since the
+     * previous run, making sure their output is present in the output directory.
+     *
+     * @param previous The index of the previous run
+     * @param run The current run
+     * @param sourceFiles All source files of the run
+     * @param processors The processors of the run
+     * @return The source files which need to be processed again
+     * @throws IOException If the previous output could not be copied
+     */
+    String[] select(IncrementalIndex previous, MercuryRun run, String[] sourceFiles, List<SourceProcessor> processors) throws IOException {
+        Map<String, Entry> unchanged = new HashMap<>();
+        for (String sourceFile : sourceFiles) {
+            String sourcePath = run.relativize(Paths.get(sourceFile));
+            Entry entry = previous.entries.get(sourcePath);
+            if (entry != null && isUnchanged(Paths.get(sourceFile), entry) && isUpToDate(entry, processors)) {
+                unchanged.put(sourcePath, entry);
+            }
+        }
+
+        // The types of files which changed or were removed may resolve differently now
+        Set<String> changedTypes = new HashSet<>();
+        for (Map.Entry<String, Entry> entry : previous.entries.entrySet()) {
+            if (!unchanged.containsKey(entry.getKey())) {
+                changedTypes.addAll(entry.getValue().types());
+            }
+        }
+
+        List<String> result = new ArrayList<>();
+        for (String sourceFile : sourceFiles) {
+            String sourcePath = run.relativize(Paths.get(sourceFile));
+            Entry entry = unchanged.get(sourcePath);
+            if (entry != null && Collections.disjoint(entry.sourceDependencies(), changedTypes)
+                    && restoreOutput(previous.outputDir, entry.outputPath())) {
+                this.entries.put(sourcePath, entry);
+            } else {
+                result.add(sourceFile);
+            }
+        }
+        return result.toArray(new String[0]);
+    }
+
+    private static boolean isUnchanged(Path sourceFile, Entry entry) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(sourceFile, BasicFileAttributes.class);
+        return attributes.size() == entry.size() && attributes.lastModifiedTime().toMillis() == entry.lastModified();
+    }
+
+    static boolean isUpToDate(Entry entry, List<SourceProcessor> processors) {
+        if (entry.dependencies().size() != processors.size()) {
+            return false;
+        }
+
+        for (int i = 0; i < processors.size(); i++) {
+            SourceProcessor processor = processors.get(i);
+            for (Map.Entry<String, String> dependency : entry.dependencies().get(i).entrySet()) {
+                if (!Objects.equals(processor.resolveDependency(dependency.getKey()), dependency.getValue())) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean restoreOutput(Path previousOutputDir, String outputPath) throws IOException {
+        Path output = this.outputDir.resolve(outputPath);
+        if (Files.isRegularFile(output)) {
+            return true;
+        }
+
+        Path previousOutput = previousOutputDir.resolve(outputPath);
+        if (previousOutputDir.equals(this.outputDir) || !Files.isRegularFile(previousOutput)) {
+            return false;
+        }
+
+        Files.createDirectories(output.getParent());
+        Files.copy(previousOutput, output, StandardCopyOption.REPLACE_EXISTING);
+        return true;
+    }
+
+    /**
+     * Deletes the output of the previous run which was not written or
+     * taken over by this run, e.g. because the class was renamed.
+     *
+     * @param previous The index of the previous run
+     * @param written The outputs written by this run, including the
+     *     copies of failed files which have no entry
+     * @throws IOException If an output file could not be deleted
+     */
+    void deleteStaleOutput(IncrementalIndex previous, Collection<String> written) throws IOException {
+        if (!previous.outputDir.equals(this.outputDir)) {
+            return;
+        }
+
+        Set<String> outputs = new HashSet<>(written);
+        for (Entry entry : this.entries.values()) {
+            outputs.add(entry.outputPath());
+        }
+
+        for (Entry entry : previous.entries.values()) {
+            if (!outputs.contains(entry.outputPath())) {
+                Files.deleteIfExists(this.outputDir.resolve(entry.outputPath()));
+            }
+        }
+    }
+
+    /**
+     * Reads the index of a previous run.
+     *
+     * @param path The index file
+     * @param fingerprint The fingerprint of the current configuration
+     * @return The index, or {@code null} if there is none or it was
+     *     written with a different configuration
+     * @throws IOException If the index could not be read
+     */
+    @Nullable
+    static IncrementalIndex read(Path path, String fingerprint) throws IOException {
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !readString(in).equals(fingerprint)) {
+                return null;
+            }
+
+            IncrementalIndex index = new IncrementalIndex(fingerprint, Paths.get(readString(in)));
+            int entryCount = in.readInt();
+            for (int i = 0; i < entryCount; i++) {
+                String sourcePath = readString(in);
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                String outputPath = readString(in);
+                List<Map<String, String>> dependencies = readDependencies(in);
+                index.entries.put(sourcePath, new Entry(size, lastModified, outputPath, dependencies,
+                        readStrings(in), readStrings(in)));
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Writes the index to a temporary file first, which is then moved over
+     * the index, so an interrupted write does not leave a truncated index.
+     *
+     * @param path The index file
+     * @throws IOException If the index could not be written
+     */
+    void write(Path path) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+
+        Path temp = Files.createTempFile(parent, path.getFileName().toString(), ".tmp");
+        try {
+            writeEntries(temp);
+            try {
+                Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private void writeEntries(Path path) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, this.fingerprint);
+            writeString(out, this.outputDir.toString());
+
+            out.writeInt(this.entries.size());
+            for (Map.Entry<String, Entry> entry : this.entries.entrySet()) {
+                writeString(out, entry.getKey());
+                out.writeLong(entry.getValue().size());
+                out.writeLong(entry.getValue().lastModified());
+                writeString(out, entry.getValue().outputPath());
+                writeDependencies(out, entry.getValue().dependencies());
+                writeStrings(out, entry.getValue().types());
+                writeStrings(out, entry.getValue().sourceDependencies());
+            }
+        }
+    }
+
+    static void writeDependencies(DataOutputStream out, List<Map<String, String>> dependencies) throws IOException {
+        out.writeInt(dependencies.size());
+        for (Map<String, String> processorDependencies : dependencies) {
+            out.writeInt(processorDependencies.size());
+            for (Map.Entry<String, String> dependency : processorDependencies.entrySet()) {
+                writeString(out, dependency.getKey());
+                out.writeBoolean(dependency.getValue() != null);
+                if (dependency.getValue() != null) {
+                    writeString(out, dependency.getValue());
+                }
+            }
+        }
+    }
+
+    static List<Map<String, String>> readDependencies(DataInputStream in) throws IOException {
+        int processorCount = in.readInt();
+        List<Map<String, String>> dependencies = new ArrayList<>(processorCount);
+        for (int i = 0; i < processorCount; i++) {
+            int dependencyCount = in.readInt();
+            Map<String, String> processorDependencies = new HashMap<>(dependencyCount * 4 / 3 + 1);
+            for (int j = 0; j < dependencyCount; j++) {
+                String key = readString(in);
+                processorDependencies.put(key, in.readBoolean() ? readString(in) : null);
+            }
+            dependencies.add(processorDependencies);
+        }
+        return dependencies;
+    }
+
+    static void writeStrings(DataOutputStream out, Collection<String> values) throws IOException {
+        out.writeInt(values.size());
+        for (String value : values) {
+            writeString(out, value);
+        }
+    }
+
+    static Set<String> readStrings(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        Set<String> values = new HashSet<>(count * 4 / 3 + 1);
+        for (int i = 0; i < count; i++) {
+            values.add(readString(in));
+        }
+        return values;
+    }
+
+    // Unlike writeUTF, not limited to 64 KiB
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
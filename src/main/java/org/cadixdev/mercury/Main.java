@@ -11,9 +11,24 @@
 import java.io.*;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
 
 public class Main {
     public static void main(String[] args) {
+        final String[] allArgs = args;
+        final boolean watch = Arrays.asList(args).contains("--watch");
+        final boolean continueOnError = Arrays.asList(args).contains("--continue-on-error");
+        final String shards = option(args, "--shards=");
+        final String workerHeap = option(args, "--worker-heap=");
+        final String shard = option(args, ShardCoordinator.SHARD_OPTION);
+        final String slowFiles = option(args, "--slow-files=");
+        final String fileTimeout = option(args, "--file-timeout=");
+        args = Arrays.stream(args).filter(arg -> !arg.startsWith("--")).toArray(String[]::new);
+
         final int MAPPINGS = 0;
         final int JAR_INPUT = 1;
         final int SOURCE_INPUT = 2;
@@ -21,10 +36,30 @@ public static void main(String[] args) {
 
         final int START_LIBS = 4;
 
+        if (shards != null && !watch) {
+            final int shardCount = Integer.parseInt(shards);
+            if (shardCount < 1) {
+                throw new IllegalArgumentException("--shards must be at least 1: " + shards);
+            }
+
+            // Coordinate worker processes instead of rewriting in this process
+            System.out.println("Rewriting in " + shardCount + " shard(s)");
+            try {
+                // Build the mappings cache once, instead of all workers racing to write it
+                loadMappings(Path.of(args[MAPPINGS]));
+                List<String> errors = ShardCoordinator.run(allArgs, Paths.get(args[SOURCE_INPUT]), shardCount, workerHeap,
+                        System.out::println);
+                errors.forEach(System.err::println);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            System.out.println("Finished rewriting");
+            System.exit(0);
+        }
 
         ParchmentRemapper remapper;
         try {
-            remapper = new ParchmentRemapper(ParchmentTree.loadFile(Path.of(args[MAPPINGS])));
+            remapper = new ParchmentRemapper(loadMappings(Path.of(args[MAPPINGS])));
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -39,15 +74,62 @@ public static void main(String[] args) {
         mercury.getProcessors().add(remapper);
         mercury.setFlexibleAnonymousClassMemberLookups(true);
         mercury.setGracefulClasspathChecks(true);
+        mercury.setClassPathPruning(true);
+        mercury.setContinueOnError(continueOnError);
+        if (slowFiles != null) {
+            mercury.setSlowFileThreshold(Duration.ofMillis(Long.parseLong(slowFiles)));
+        }
+        if (fileTimeout != null) {
+            mercury.setFileTimeout(Duration.ofMillis(Long.parseLong(fileTimeout)));
+        }
 
 
         System.out.println("Rewriting");
         try {
-            mercury.rewrite(Paths.get(args[SOURCE_INPUT]), Paths.get(args[SOURCE_OUTPUT]));
+            if (watch) {
+                mercury.watch(Paths.get(args[SOURCE_INPUT]), Paths.get(args[SOURCE_OUTPUT]), Duration.ofMillis(200), new SourceWatcher.Listener() {
+                    @Override
+                    public void rewritten(Set<Path> sourceFiles) {
+                        System.out.println("Rewrote " + sourceFiles.size() + " file(s)");
+                    }
+
+                    @Override
+                    public void failed(Set<Path> sourceFiles, Exception e) {
+                        System.err.println("Failed to rewrite " + sourceFiles);
+                        e.printStackTrace();
+                    }
+                });
+            } else if (shard != null) {
+                ShardCoordinator.runWorker(mercury, Paths.get(shard), Paths.get(args[SOURCE_INPUT]), Paths.get(args[SOURCE_OUTPUT]));
+            } else {
+                List<SourceError> errors = new ArrayList<>();
+                mercury.setErrorHandler(error -> {
+                    System.err.println(error);
+                    errors.add(error);
+                });
+                mercury.rewrite(Paths.get(args[SOURCE_INPUT]), Paths.get(args[SOURCE_OUTPUT]));
+                if (!errors.isEmpty()) {
+                    System.err.println(errors.size() + " file(s) failed and were copied unchanged");
+                }
+            }
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
         System.out.println("Finished rewriting");
         System.exit(0);
     }
+
+    private static ParchmentTree loadMappings(Path mappings) throws IOException {
+        Path cache = mappings.resolveSibling(mappings.getFileName() + ".cache");
+        return ParchmentTree.loadFile(mappings, cache, e -> System.err.println("Ignoring Parchment cache " + cache + ": " + e));
+    }
+
+    private static String option(String[] args, String prefix) {
+        for (String arg : args) {
+            if (arg.startsWith(prefix)) {
+                return arg.substring(prefix.length());
+            }
+        }
+        return null;
+    }
 }
@@ -10,27 +10,40 @@
 
 package org.cadixdev.mercury;
 
+import org.eclipse.core.runtime.OperationCanceledException;
 import org.eclipse.jdt.core.JavaCore;
+import org.eclipse.jdt.core.compiler.IProblem;
 import org.eclipse.jdt.core.dom.AST;
 import org.eclipse.jdt.core.dom.ASTParser;
 import org.eclipse.jdt.core.dom.CompilationUnit;
-import org.eclipse.jdt.core.dom.FileASTRequestor;
-import org.eclipse.jdt.core.dom.IBinding;
 import org.eclipse.jdt.core.dom.ITypeBinding;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitOption;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.StringJoiner;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
 
 public final class Mercury {
@@ -53,21 +66,90 @@ public final class Mercury {
      */
     private boolean gracefulJavadocClasspathChecks = false;
     /**
-     * Mercury will try different combinations of anonymous class indexes when searching
-     * for member mappings if this is true.
+     * Mercury will match anonymous classes to their mappings by their superclass,
+     * interfaces and declared members when searching for member mappings if this
+     * is true, rather than relying on the anonymous class indexes to be the same.
      */
     private boolean flexibleAnonymousClassMemberLookups = false;
+    /**
+     * Mercury will only pass the classpath entries to JDT that provide packages
+     * the sources may reference if this is true. Files which fail to resolve
+     * against the pruned classpath are parsed again with the full classpath.
+     */
+    private boolean classPathPruning = false;
+    /**
+     * The number of threads used to parse and process the sources of a
+     * single run. The sources are split into this many partitions, each
+     * parsed separately with the source directory added to the source path.
+     */
+    private int parallelism = 1;
+    /**
+     * The maximum number of files whose output is written in the background
+     * at the same time, using virtual threads if available. If this is 0, the
+     * output is written on the thread that parsed the file.
+     */
+    private int outputConcurrency = 0;
+    /**
+     * If set, rewrites record the dependencies of each file in this index,
+     * and the next rewrite only processes the files whose source or
+     * dependencies changed. Requires all processors to support
+     * {@link SourceProcessor#FLAG_INCREMENTAL}, otherwise all files are processed.
+     */
+    private Path incrementalIndex;
+    /**
+     * If set, a file that fails to parse, process or write does not abort
+     * the run. The failure is recorded as a {@link SourceError}, and the
+     * original file is copied to the output directory instead.
+     */
+    private boolean continueOnError = false;
+    /**
+     * If set, rewrites keep a journal of the completed files in the output
+     * directory. A rewrite that was interrupted, e.g. because the process
+     * was killed, only processes the remaining files when started again.
+     * Like {@link #incrementalIndex}, requires all processors to support
+     * {@link SourceProcessor#FLAG_INCREMENTAL}, so completed files are
+     * processed again if their dependencies changed.
+     */
+    private boolean checkpointing = false;
+    /**
+     * If set, the time spent on each file is recorded in this file, and
+     * used by the next run to balance the files across the parser threads.
+     * Otherwise, the files are balanced by their size.
+     */
+    private Path schedulingProfile;
+    /**
+     * If set, files which take longer than this to parse, process and write
+     * are passed to the {@link #slowFileHandler}, with the time spent in
+     * each phase.
+     */
+    private Duration slowFileThreshold;
+    /**
+     * Receives the slow files, possibly from multiple threads at once.
+     * Prints them to {@link System#err} by default.
+     */
+    private Consumer<FileTimings> slowFileHandler = timings -> System.err.println("Slow file: " + timings);
+    /**
+     * Receives the files that failed, if {@link #continueOnError} is enabled,
+     * and the files that timed out, once the run is finished. Prints them
+     * to {@link System#err} by default.
+     */
+    private Consumer<SourceError> errorHandler = System.err::println;
+    /**
+     * If set, the time budget of each file for parsing and processing it.
+     * Files exceeding it are canceled, copied unchanged and reported as
+     * {@link SourceError.Stage#TIMEOUT}, even if {@link #continueOnError}
+     * is disabled.
+     */
+    private Duration fileTimeout;
 
     private final List<Path> classPath = new ArrayList<>();
     private final List<Path> sourcePath = new ArrayList<>();
-
-    private final Map<Object, Object> context = new HashMap<>();
-    private Path sourceDir;
-    private Path outputDir;
+    private ClassPathIndex classPathIndex;
+    private InMemoryNameEnvironment nameEnvironment;
 
     private final List<SourceProcessor> processors = new ArrayList<>();
 
-    private final FileASTRequestor requestor = new Requestor();
+    private final ThreadLocal<MercuryRun> currentRun = new ThreadLocal<>();
 
     public String getSourceCompatibility() {
         return this.sourceCompatibility;
@@ -127,10 +209,126 @@ public void setFlexibleAnonymousClassMemberLookups(final boolean enable) {
         this.flexibleAnonymousClassMemberLookups = enable;
     }
 
+    public boolean isClassPathPruning() {
+        return this.classPathPruning;
+    }
+
+    public void setClassPathPruning(final boolean enable) {
+        this.classPathPruning = enable;
+    }
+
+    public int getParallelism() {
+        return this.parallelism;
+    }
+
+    public void setParallelism(final int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        this.parallelism = parallelism;
+    }
+
+    public int getOutputConcurrency() {
+        return this.outputConcurrency;
+    }
+
+    public void setOutputConcurrency(final int outputConcurrency) {
+        if (outputConcurrency < 0) {
+            throw new IllegalArgumentException("outputConcurrency must not be negative");
+        }
+        this.outputConcurrency = outputConcurrency;
+    }
+
+    @Nullable
+    public Path getIncrementalIndex() {
+        return this.incrementalIndex;
+    }
+
+    public void setIncrementalIndex(@Nullable Path incrementalIndex) {
+        this.incrementalIndex = incrementalIndex;
+    }
+
+    public boolean isContinueOnError() {
+        return this.continueOnError;
+    }
+
+    public void setContinueOnError(final boolean enable) {
+        this.continueOnError = enable;
+    }
+
+    public boolean isCheckpointing() {
+        return this.checkpointing;
+    }
+
+    public void setCheckpointing(final boolean enable) {
+        this.checkpointing = enable;
+    }
+
+    @Nullable
+    public Path getSchedulingProfile() {
+        return this.schedulingProfile;
+    }
+
+    public void setSchedulingProfile(@Nullable Path schedulingProfile) {
+        this.schedulingProfile = schedulingProfile;
+    }
+
+    @Nullable
+    public Duration getSlowFileThreshold() {
+        return this.slowFileThreshold;
+    }
+
+    public void setSlowFileThreshold(@Nullable Duration slowFileThreshold) {
+        this.slowFileThreshold = slowFileThreshold;
+    }
+
+    public Consumer<FileTimings> getSlowFileHandler() {
+        return this.slowFileHandler;
+    }
+
+    public void setSlowFileHandler(Consumer<FileTimings> slowFileHandler) {
+        this.slowFileHandler = Objects.requireNonNull(slowFileHandler, "slowFileHandler");
+    }
+
+    public Consumer<SourceError> getErrorHandler() {
+        return this.errorHandler;
+    }
+
+    public void setErrorHandler(Consumer<SourceError> errorHandler) {
+        this.errorHandler = Objects.requireNonNull(errorHandler, "errorHandler");
+    }
+
+    @Nullable
+    public Duration getFileTimeout() {
+        return this.fileTimeout;
+    }
+
+    public void setFileTimeout(@Nullable Duration fileTimeout) {
+        if (fileTimeout != null && (fileTimeout.isNegative() || fileTimeout.isZero())) {
+            throw new IllegalArgumentException("File timeout must be positive: " + fileTimeout);
+        }
+        this.fileTimeout = fileTimeout;
+    }
+
     public List<Path> getClassPath() {
         return this.classPath;
     }
 
+    public InMemoryNameEnvironment getNameEnvironment() {
+        return this.nameEnvironment;
+    }
+
+    /**
+     * Sets a name environment which provides classes from memory, in
+     * addition to the classes on the {@link #getClassPath() classpath}.
+     * Its classes are looked up first.
+     *
+     * @param nameEnvironment The name environment, or {@code null} to remove it
+     */
+    public void setNameEnvironment(InMemoryNameEnvironment nameEnvironment) {
+        this.nameEnvironment = nameEnvironment;
+    }
+
     public List<Path> getSourcePath() {
         return this.sourcePath;
     }
@@ -139,31 +337,70 @@ public List<SourceProcessor> getProcessors() {
         return this.processors;
     }
 
+    /**
+     * Returns the run that is currently processed on the calling thread.
+     *
+     * @return The current run, or {@code null} if the thread is not processing
+     */
+    @Nullable
+    public MercuryRun getCurrentRun() {
+        return this.currentRun.get();
+    }
+
+    /**
+     * See {@link MercuryRun#getSourceDir()}.
+     */
+    @Nullable
     public Path getSourceDir() {
-        return this.sourceDir;
+        MercuryRun run = this.currentRun.get();
+        return run != null ? run.getSourceDir() : null;
     }
 
+    /**
+     * See {@link MercuryRun#getOutputDir()}.
+     */
+    @Nullable
     public Path getOutputDir() {
-        return this.outputDir;
+        MercuryRun run = this.currentRun.get();
+        return run != null ? run.getOutputDir() : null;
     }
 
+    /**
+     * See {@link MercuryRun#getContext()}. Returns an empty map if the
+     * calling thread is not processing.
+     */
     public Map<Object, Object> getContext() {
-        return this.context;
+        MercuryRun run = this.currentRun.get();
+        return run != null ? run.getContext() : Collections.emptyMap();
     }
 
     public Optional<ITypeBinding> createTypeBinding(String className) {
-        if (isAnonymousOrLocalType(className)) {
-            // TODO: Anonymous or local types are currently not supported
-            // Eclipse uses source lines in their binding keys that are impossible
-            // to know in advance. Since it may return incorrect results, abort early.
-            return Optional.empty();
-        }
+        return Optional.ofNullable(createTypeBindings(Collections.singletonList(className)).get(className));
+    }
 
-        IBinding binding = this.requestor.createBindings(new String[]{'L' + className.replace('.', '/') + ';'})[0];
-        return binding != null && binding.getKind() == IBinding.TYPE ? Optional.of((ITypeBinding) binding) : Optional.empty();
+    /**
+     * Creates the type bindings of multiple classes at once. The bindings
+     * are cached, so looking up the same class again while processing the
+     * files of the run is free.
+     *
+     * <p>Anonymous and local classes, such as {@code a.Outer$1}, are never
+     * resolved and left out of the result. JDT identifies them by their
+     * position in the source, which can't be derived from the binary name,
+     * and guessing it could return the binding of a different class. Their
+     * bindings can only be reached from the AST of the declaring file.</p>
+     *
+     * @param classNames The binary names of the classes
+     * @return The bindings of the classes that could be resolved, by class name
+     */
+    public Map<String, ITypeBinding> createTypeBindings(Collection<String> classNames) {
+        MercuryRun run = this.currentRun.get();
+        if (run == null) {
+            throw new IllegalStateException("Type bindings can only be created while processing");
+        }
+        return run.createTypeBindings(classNames);
     }
 
-    private static boolean isAnonymousOrLocalType(String className) {
+    static boolean isAnonymousOrLocalType(String className) {
         int i = className.indexOf('$') + 1;
         while (i > 0 && i < className.length()) {
             if (Character.isDigit(className.charAt(i))) {
@@ -174,103 +411,410 @@ private static boolean isAnonymousOrLocalType(String className) {
         return false;
     }
 
+    /**
+     * Runs the processors on the sources in the given directory.
+     *
+     * @param sourceDir The directory containing the sources
+     * @throws Exception If processing the sources failed
+     */
     public void process(Path sourceDir) throws Exception {
-        if (this.sourceDir != null) {
-            throw new IllegalStateException("Instance is currently processing: " + this.sourceDir);
-        }
-
-        try {
-            this.sourceDir = Objects.requireNonNull(sourceDir, "sourceDir");
-            run();
-        } finally {
-            cleanup();
-        }
+        run(new MercuryRun(this, Objects.requireNonNull(sourceDir, "sourceDir"), null, null)).forEach(this.errorHandler);
     }
 
+    /**
+     * Rewrites the sources in the given directory into the output directory.
+     *
+     * @param sourceDir The directory containing the sources
+     * @param outputDir The directory to write the rewritten sources to
+     * @throws Exception If rewriting the sources failed
+     */
     public void rewrite(Path sourceDir, Path outputDir) throws Exception {
-        if (this.sourceDir != null) {
-            throw new IllegalStateException("Instance is currently processing: " + this.sourceDir);
-        }
+        run(new MercuryRun(this, Objects.requireNonNull(sourceDir, "sourceDir"),
+                Objects.requireNonNull(outputDir, "outputDir"), null)).forEach(this.errorHandler);
+    }
 
-        try {
-            this.sourceDir = Objects.requireNonNull(sourceDir, "sourceDir");
-            this.outputDir = Objects.requireNonNull(outputDir, "outputDir");
-            run();
-        } finally {
-            cleanup();
+    /**
+     * Rewrites the sources in the given directory, but instead of writing a
+     * full copy of the source tree, only writes the changes as a single
+     * unified diff to the given patch file. Unchanged files are never written.
+     * The changes are sorted by the path of their source file.
+     *
+     * @param sourceDir The directory containing the sources
+     * @param patchFile The patch file to write
+     * @throws Exception If rewriting the sources failed
+     */
+    public void diff(Path sourceDir, Path patchFile) throws Exception {
+        Objects.requireNonNull(sourceDir, "sourceDir");
+        List<SourceError> errors;
+        try (Writer writer = Files.newBufferedWriter(Objects.requireNonNull(patchFile, "patchFile"), this.encoding)) {
+            MercuryRun run = new MercuryRun(this, sourceDir, null, writer);
+            errors = run(run);
+            run.writePatch();
         }
+        errors.forEach(this.errorHandler);
     }
 
-    private void cleanup() {
-        this.sourceDir = null;
-        this.outputDir = null;
-        this.context.clear();
+    /**
+     * Runs the processors on the sources in the given directory like a
+     * rewrite, but only counts the edits they would make. The sources are
+     * neither loaded as documents nor rewritten, and nothing is written.
+     *
+     * @param sourceDir The directory containing the sources
+     * @return The number of edits of each file that would change, sorted by path
+     * @throws Exception If processing the sources failed
+     */
+    public Map<Path, Integer> dryRun(Path sourceDir) throws Exception {
+        MercuryRun run = new MercuryRun(this, Objects.requireNonNull(sourceDir, "sourceDir"), null, null);
+        run.changes = new ConcurrentHashMap<>();
+        run(run).forEach(this.errorHandler);
+        return new TreeMap<>(run.changes);
     }
 
-    private void run() throws Exception {
-        ASTParser parser = ASTParser.newParser(AST.getJLSLatest());
+    /**
+     * Rewrites the sources in the given directory, then keeps watching it
+     * and rewrites changed files as well as the files which may refer to
+     * them. The instance, including the mappings of its processors, stays
+     * loaded between changes. Blocks until the thread is interrupted.
+     *
+     * @param sourceDir The directory containing the sources
+     * @param outputDir The directory to write the rewritten sources to
+     * @param debounce The time to wait for more changes before rewriting
+     * @param listener The listener notified after each rewrite
+     * @throws Exception If the initial rewrite or watching the directory failed
+     */
+    public void watch(Path sourceDir, Path outputDir, Duration debounce, SourceWatcher.Listener listener) throws Exception {
+        new SourceWatcher(this, Objects.requireNonNull(sourceDir, "sourceDir"), Objects.requireNonNull(outputDir, "outputDir"),
+                Objects.requireNonNull(debounce, "debounce"), Objects.requireNonNull(listener, "listener")).run();
+    }
 
-        // Set Java version
-        Map<String, String> options = JavaCore.getOptions();
-        JavaCore.setComplianceOptions(this.sourceCompatibility, options);
-        parser.setCompilerOptions(options);
+    List<SourceError> run(MercuryRun run) throws Exception {
+        MercuryRun previous = this.currentRun.get();
+        this.currentRun.set(run);
+        try {
+            run0(run);
+            return run.getErrors();
+        } finally {
+            run.cleanup();
+            if (previous != null) {
+                this.currentRun.set(previous);
+            } else {
+                this.currentRun.remove();
+            }
+        }
+    }
 
+    private void run0(MercuryRun run) throws Exception {
         // Collect processor flags
         int flags = 0;
+        boolean dependencies = true;
         for (SourceProcessor processor : this.processors) {
-            flags |= processor.getFlags();
-        }
-
-        if ((flags & SourceProcessor.FLAG_RESOLVE_BINDINGS) != 0) {
-            // Resolve references
-            parser.setResolveBindings(true);
-            parser.setBindingsRecovery(true);
+            int processorFlags = processor.getFlags();
+            if ((processorFlags & SourceProcessor.FLAG_DECLARES_PARSER_FEATURES) == 0) {
+                processorFlags |= SourceProcessor.PARSER_FEATURES;
+            }
+            if ((processorFlags & SourceProcessor.FLAG_INCREMENTAL) == 0) {
+                dependencies = false;
+            } else if (!overridesResolveDependency(processor)) {
+                throw new IllegalStateException("Processor declares FLAG_INCREMENTAL, but does not implement resolveDependency: "
+                        + processor.getClass().getName());
+            }
+            flags |= processorFlags;
         }
-
-        // Set environment
-        String[] sourcePath = toArray(this.sourcePath.stream());
-        parser.setEnvironment(toArray(this.classPath.stream()), sourcePath, getEncodings(sourcePath), true);
+        // Output can only be reused if the dependencies of all processors can be checked
+        boolean incremental = dependencies && this.incrementalIndex != null && run.getOutputDir() != null && run.include == null;
+        boolean checkpointing = dependencies && this.checkpointing && run.getOutputDir() != null && run.include == null
+                && run.changes == null;
 
         // Walk directory to find source files
-        String[] sourceFiles = toArray(Files.walk(this.sourceDir, FileVisitOption.FOLLOW_LINKS)
+        String[] sourceFiles = toArray(Files.walk(run.getSourceDir(), FileVisitOption.FOLLOW_LINKS)
                 .filter(p -> p.getFileName() != null && p.getFileName().toString().endsWith(JAVA_EXTENSION)));
 
         for (SourceProcessor processor : this.processors) {
             processor.initialize(this);
         }
 
+        // Only process the files whose source or dependencies changed
+        IncrementalIndex previousIndex = null;
+        int sourceFileCount = sourceFiles.length;
+        if (run.include != null) {
+            sourceFiles = Arrays.stream(sourceFiles).filter(run.include::contains).toArray(String[]::new);
+        }
+        if (incremental) {
+            String fingerprint = getIncrementalFingerprint();
+            run.index = new IncrementalIndex(fingerprint, run.getOutputDir());
+            previousIndex = IncrementalIndex.read(this.incrementalIndex, fingerprint);
+            if (previousIndex != null) {
+                sourceFiles = run.index.select(previousIndex, run, sourceFiles, this.processors);
+            }
+        }
+
+        // Skip the files completed by an interrupted run
+        if (checkpointing) {
+            run.checkpoint = CheckpointJournal.open(run.getOutputDir(), getIncrementalFingerprint());
+            sourceFiles = run.checkpoint.select(run, sourceFiles, this.processors);
+        }
+
+        // Only scan the files which are parsed in this run
+        String[] classPath = toArray(this.classPath.stream());
+        String[] prunedClassPath = classPath;
+        if (this.classPathPruning && sourceFiles.length > 0) {
+            prunedClassPath = toArray(getClassPathIndex().prune(
+                    ClassPathIndex.collectNames(sourceFiles, this.encoding)).stream());
+        }
+        if (this.nameEnvironment != null) {
+            // The classes in memory are looked up before the classpath and never pruned
+            String jar = this.nameEnvironment.getJar().toString();
+            classPath = prepend(jar, classPath);
+            prunedClassPath = prepend(jar, prunedClassPath);
+        }
+
+        Map<String, Long> durations = FileScheduler.readProfile(this.schedulingProfile);
+        if (this.schedulingProfile != null) {
+            run.durations = new ConcurrentHashMap<>();
+        }
+
         // Parse source files
-        parser.createASTs(sourceFiles, getEncodings(sourceFiles), EMPTY_STRING_ARRAY, this.requestor, null);
+        boolean partial = sourceFiles.length < sourceFileCount;
+        int partitions = Math.min(this.parallelism, sourceFiles.length);
+        run.processors = MercuryRun.dispatch(this.processors, partitions > 1);
+        if (prunedClassPath.length < classPath.length) {
+            run.classPathMisses = ConcurrentHashMap.newKeySet();
+        }
+
+        try (OutputQueue output = this.outputConcurrency > 0 ? new OutputQueue(this.outputConcurrency) : null;
+             FileWatchdog watchdog = this.fileTimeout != null ? new FileWatchdog(this.fileTimeout) : null) {
+            run.output = output;
+            run.watchdog = watchdog;
+            parse(run, flags, prunedClassPath, sourceFiles, partitions, partial, durations);
+
+            if (run.classPathMisses != null && !run.classPathMisses.isEmpty()) {
+                // Some files need classpath entries which were pruned, parse them again
+                // with the full classpath and the other files on the source path
+                String[] retryFiles = run.classPathMisses.toArray(new String[0]);
+                run.classPathMisses = null;
+                parse(run, flags, classPath, retryFiles, Math.min(partitions, retryFiles.length), true, durations);
+            }
+        } finally {
+            // All output has been written once the queue is closed
+            run.output = null;
+            run.watchdog = null;
+            run.classPathMisses = null;
+            if (run.checkpoint != null) {
+                // Keep the journal if the run failed, so it can be resumed
+                run.checkpoint.close();
+            }
+        }
+
+        if (run.durations != null) {
+            FileScheduler.writeProfile(this.schedulingProfile, durations, run.durations);
+        }
+
+        if (run.index != null) {
+            if (previousIndex != null) {
+                run.index.deleteStaleOutput(previousIndex, run.outputs.values());
+            }
+            run.index.write(this.incrementalIndex);
+            run.index = null;
+        }
 
         for (SourceProcessor processor : this.processors) {
             processor.finish(this);
         }
+
+        // The run is complete once the processors finished
+        if (run.checkpoint != null) {
+            run.checkpoint.delete();
+            run.checkpoint = null;
+        }
     }
 
-    private SourceContext createContext(String sourceFilePath, CompilationUnit ast) {
-        Path sourceFile = Paths.get(sourceFilePath);
-        String fileName = sourceFile.getFileName().toString();
-        String primaryType = fileName.substring(0, fileName.length() - JAVA_EXTENSION.length());
+    private String getIncrementalFingerprint() {
+        // The previous output can only be reused if it was produced the same way
+        StringJoiner fingerprint = new StringJoiner(";");
+        fingerprint.add(this.sourceCompatibility).add(this.encoding.name());
+        for (SourceProcessor processor : this.processors) {
+            fingerprint.add(processor.getClass().getName() + '/' + processor.getFlags() + '/' + processor.getConfiguration());
+        }
+        return fingerprint.toString();
+    }
 
-        if (this.outputDir != null) {
-            return new RewriteContext(this, sourceFile, ast, primaryType);
-        } else {
-            return new SourceContext(this, sourceFile, ast, primaryType);
+    private static boolean overridesResolveDependency(SourceProcessor processor) {
+        try {
+            return processor.getClass().getMethod("resolveDependency", String.class).getDeclaringClass() != SourceProcessor.class;
+        } catch (NoSuchMethodException e) {
+            throw new AssertionError(e);
         }
     }
 
-    void accept(String sourceFilePath, CompilationUnit ast) {
-        SourceContext context = createContext(sourceFilePath, ast);
+    private synchronized ClassPathIndex getClassPathIndex() throws IOException {
+        // Shared between runs until the classpath changes
+        if (this.classPathIndex == null || !this.classPathIndex.isFor(this.classPath)) {
+            this.classPathIndex = ClassPathIndex.build(this.classPath);
+        }
+        return this.classPathIndex;
+    }
+
+    private void parse(MercuryRun run, int flags, String[] classPath, String[] sourceFiles, int partitions, boolean partial,
+            Map<String, Long> durations) throws Exception {
+        // A parser only knows the compilation units passed to it, so the types
+        // of the other partitions or skipped files are found on the source path
+        String[] sourcePath = partitions > 1 || partial || this.continueOnError
+                ? toArray(Stream.concat(this.sourcePath.stream(), Stream.of(run.getSourceDir())))
+                : toArray(this.sourcePath.stream());
+
+        if (partitions <= 1) {
+            createASTsIsolated(run, flags, classPath, sourcePath, sourceFiles);
+            return;
+        }
 
+        // Threads take the next batch from the queue once they are done, the most expensive batches come first
+        String[][] batches = FileScheduler.schedule(run, sourceFiles, partitions, durations);
+        ExecutorService executor = Executors.newFixedThreadPool(partitions);
         try {
-            context.process(this.processors);
-        } catch (Exception e) {
-            throw new RuntimeException("Failed to process: " + sourceFilePath, e);
+            List<Future<?>> futures = new ArrayList<>(batches.length);
+            for (String[] partition : batches) {
+                futures.add(executor.submit(() -> {
+                    this.currentRun.set(run);
+                    try {
+                        createASTsIsolated(run, flags, classPath, sourcePath, partition);
+                    } finally {
+                        this.currentRun.remove();
+                    }
+                    return null;
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception) {
+                        throw (Exception) e.getCause();
+                    }
+                    if (e.getCause() instanceof Error) {
+                        throw (Error) e.getCause();
+                    }
+                    throw e;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Parses the given files. If {@link #continueOnError} is enabled and the
+     * compiler fails, or a file exceeds the {@link #fileTimeout}, the file
+     * that caused it is narrowed down and recorded as error, and the other
+     * files are parsed again.
+     */
+    private void createASTsIsolated(MercuryRun run, int flags, String[] classPath, String[] sourcePath, String[] sourceFiles) {
+        String[] remaining = sourceFiles;
+        while (remaining.length > 0) {
+            MercuryRun.Requestor requestor = run.createRequestor(remaining.length);
+            try {
+                createASTs(requestor, flags, classPath, sourcePath, remaining);
+                if (!requestor.isTimedOut()) {
+                    return;
+                }
+                // The compiler may also stop without failing once it is canceled
+                throw new OperationCanceledException();
+            } catch (RuntimeException | StackOverflowError e) {
+                boolean timedOut = requestor.isTimedOut();
+                if (!this.continueOnError && !timedOut) {
+                    throw e;
+                }
+
+                String[] left = Arrays.stream(remaining).filter(file -> !requestor.accepted.contains(file)).toArray(String[]::new);
+                if (left.length == 0) {
+                    if (timedOut) {
+                        // Timed out after all files were processed, nothing was lost
+                        return;
+                    }
+                    // Failed after all files were processed, nothing to narrow down
+                    throw e;
+                }
+
+                if (timedOut && (left.length == 1 || left.length < remaining.length)) {
+                    // The budget restarts with each accepted file, so it was the first file left that timed out
+                    run.fail(Paths.get(left[0]), SourceError.Stage.TIMEOUT, null, run.watchdog.timeout(e));
+                    remaining = Arrays.copyOfRange(left, 1, left.length);
+                    continue;
+                }
+
+                if (left.length == 1) {
+                    run.fail(Paths.get(left[0]), SourceError.Stage.PARSE, null, e);
+                    return;
+                }
+
+                if (left.length < remaining.length) {
+                    // Files are accepted in order, so the first one left most likely failed
+                    createASTsIsolated(run, flags, classPath, sourcePath, new String[]{left[0]});
+                    remaining = Arrays.copyOfRange(left, 1, left.length);
+                } else {
+                    // Failed before any file was accepted, split the files to find the one that failed
+                    createASTsIsolated(run, flags, classPath, sourcePath, Arrays.copyOfRange(left, 0, left.length / 2));
+                    remaining = Arrays.copyOfRange(left, left.length / 2, left.length);
+                }
+            } finally {
+                requestor.stop();
+            }
+        }
+    }
+
+    private void createASTs(MercuryRun.Requestor requestor, int flags, String[] classPath, String[] sourcePath, String[] sourceFiles) {
+        ASTParser parser = ASTParser.newParser(AST.getJLSLatest());
+
+        // Set Java version
+        Map<String, String> options = JavaCore.getOptions();
+        JavaCore.setComplianceOptions(this.sourceCompatibility, options);
+        options.put(JavaCore.COMPILER_DOC_COMMENT_SUPPORT,
+                (flags & SourceProcessor.FLAG_NEEDS_JAVADOC) != 0 ? JavaCore.ENABLED : JavaCore.DISABLED);
+        parser.setCompilerOptions(options);
+
+        boolean resolveBindings = (flags & SourceProcessor.FLAG_RESOLVE_BINDINGS) != 0;
+        if (resolveBindings) {
+            // Resolve references
+            parser.setResolveBindings(true);
+            parser.setBindingsRecovery((flags & SourceProcessor.FLAG_NEEDS_BINDINGS_RECOVERY) != 0);
         }
+
+        parser.setIgnoreMethodBodies((flags & SourceProcessor.FLAG_NEEDS_METHOD_BODIES) == 0);
+        parser.setStatementsRecovery((flags & SourceProcessor.FLAG_NEEDS_STATEMENTS_RECOVERY) != 0);
+
+        // Set environment
+        parser.setEnvironment(classPath, sourcePath, getEncodings(sourcePath), true);
+
+        parser.createASTs(sourceFiles, getEncodings(sourceFiles), EMPTY_STRING_ARRAY, requestor, requestor.monitor);
+    }
+
+    static boolean hasClassPathProblems(CompilationUnit ast) {
+        for (IProblem problem : ast.getProblems()) {
+            switch (problem.getID()) {
+                case IProblem.IsClassPathCorrect:
+                case IProblem.ImportNotFound:
+                case IProblem.UndefinedType:
+                case IProblem.UndefinedName:
+                case IProblem.MissingTypeInMethod:
+                case IProblem.MissingTypeInConstructor:
+                    return true;
+            }
+        }
+        return false;
     }
 
     private static String[] toArray(Stream<Path> stream) {
-        return stream.map(Path::toString).toArray(String[]::new);
+        // Close the stream, Files.walk keeps directories open until then
+        try (Stream<Path> paths = stream) {
+            return paths.map(Path::toString).toArray(String[]::new);
+        }
+    }
+
+    private static String[] prepend(String first, String[] rest) {
+        String[] result = new String[rest.length + 1];
+        result[0] = first;
+        System.arraycopy(rest, 0, result, 1, rest.length);
+        return result;
     }
 
     // Assume that all files use the same encoding
@@ -284,13 +828,4 @@ private String[] getEncodings(String[] files) {
         return encodings;
     }
 
-    private class Requestor extends FileASTRequestor {
-
-        @Override
-        public void acceptAST(String sourceFilePath, CompilationUnit ast) {
-            accept(sourceFilePath, ast);
-        }
-
-    }
-
 }
@@ -0,0 +1,436 @@
+/*
+ * Copyright (c) 2018 Cadix Development (https://www.cadixdev.org)
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which accompanies this distribution,
+ * and is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.cadixdev.mercury;
+
+import org.eclipse.jdt.core.dom.CompilationUnit;
+import org.eclipse.jdt.core.dom.FileASTRequestor;
+import org.eclipse.jdt.core.dom.IBinding;
+import org.eclipse.jdt.core.dom.ITypeBinding;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The state of a single invocation of {@link Mercury#process(Path)},
+ * {@link Mercury#rewrite(Path, Path)} or {@link Mercury#diff(Path, Path)}.
+ *
+ * <p>Each invocation has its own run, so a configured {@link Mercury}
+ * instance can be used from multiple threads at the same time. The
+ * configuration of the instance, including its processors, must not be
+ * changed while runs are in progress.</p>
+ */
+public final class MercuryRun {
+
+    private final Mercury mercury;
+    private final Path sourceDir;
+    @Nullable
+    private final Path outputDir;
+    @Nullable
+    private final Writer patchWriter;
+    // The patch of each changed file by source path, written in order once all files were rewritten
+    @Nullable
+    final SortedMap<String, String> patches;
+
+    private final Map<Object, Object> context = Collections.synchronizedMap(new HashMap<>());
+    private final ThreadLocal<Requestor> activeRequestor = new ThreadLocal<>();
+
+    List<SourceProcessor> processors;
+    @Nullable
+    OutputQueue output;
+    @Nullable
+    IncrementalIndex index;
+    @Nullable
+    CheckpointJournal checkpoint;
+    @Nullable
+    FileWatchdog watchdog;
+    // If set, the time spent on each file by source path
+    @Nullable
+    Map<String, Long> durations;
+    // If set, only these source files are processed
+    @Nullable
+    Set<String> include;
+    // If set, the run only counts the edits of each file
+    @Nullable
+    Map<Path, Integer> changes;
+    // The output path of each rewritten source file
+    final Map<String, String> outputs = new ConcurrentHashMap<>();
+    private final List<SourceError> errors = Collections.synchronizedList(new ArrayList<>());
+    // If set, files with classpath problems are collected here instead of being processed
+    @Nullable
+    Set<String> classPathMisses;
+
+    MercuryRun(Mercury mercury, Path sourceDir, @Nullable Path outputDir, @Nullable Writer patchWriter) {
+        this.mercury = mercury;
+        this.sourceDir = sourceDir;
+        this.outputDir = outputDir;
+        this.patchWriter = patchWriter;
+        this.patches = patchWriter != null ? new ConcurrentSkipListMap<>() : null;
+    }
+
+    public Mercury getMercury() {
+        return this.mercury;
+    }
+
+    public Path getSourceDir() {
+        return this.sourceDir;
+    }
+
+    @Nullable
+    public Path getOutputDir() {
+        return this.outputDir;
+    }
+
+    /**
+     * Writes the patches of all changed files, sorted by their path, so
+     * the patch does not depend on the order the files were rewritten in.
+     */
+    void writePatch() throws IOException {
+        if (this.patchWriter != null) {
+            for (String patch : this.patches.values()) {
+                this.patchWriter.write(patch);
+            }
+        }
+    }
+
+    /**
+     * Returns the path of the given source file relative to the source
+     * directory, using {@code /} as separator.
+     *
+     * @param sourceFile The source file
+     * @return The relative path
+     */
+    public String relativize(Path sourceFile) {
+        return relativize(this.sourceDir, sourceFile);
+    }
+
+    static String relativize(Path dir, Path file) {
+        StringJoiner path = new StringJoiner("/");
+        for (Path part : dir.relativize(file)) {
+            path.add(part.toString());
+        }
+        return path.toString();
+    }
+
+    /**
+     * Returns whether only some of the source files are processed, e.g.
+     * the changed files in {@link Mercury#watch watch mode} or a single
+     * shard. Processors writing a report of all files should merge it with
+     * their previous report in this case.
+     *
+     * @return Whether the run is limited to some of the source files
+     */
+    public boolean isPartial() {
+        return this.include != null;
+    }
+
+    /**
+     * Returns a map that processors can use to share state for the
+     * duration of this run. The map is synchronized, since files may be
+     * processed on multiple threads.
+     *
+     * @return The context of this run
+     */
+    public Map<Object, Object> getContext() {
+        return this.context;
+    }
+
+    /**
+     * Releases the state of the run once it is finished, so a long-lived
+     * {@link Mercury} instance does not retain it. Only the outputs are kept.
+     */
+    void cleanup() {
+        this.context.clear();
+        this.activeRequestor.remove();
+        this.processors = null;
+        this.output = null;
+        this.index = null;
+        this.checkpoint = null;
+        this.watchdog = null;
+        this.durations = null;
+        this.classPathMisses = null;
+    }
+
+    /**
+     * Returns the files that failed so far, if
+     * {@link Mercury#isContinueOnError()} is enabled, and the files that
+     * exceeded the {@link Mercury#getFileTimeout() time budget}.
+     *
+     * @return The errors of this run
+     */
+    public List<SourceError> getErrors() {
+        synchronized (this.errors) {
+            return new ArrayList<>(this.errors);
+        }
+    }
+
+    /**
+     * Records a file that failed and copies the original file to the
+     * output directory instead, so the output is complete. The file is
+     * removed from the incremental index, so the next run processes it again.
+     */
+    void fail(Path sourceFile, SourceError.Stage stage, @Nullable String processor, Throwable cause) {
+        if (this.outputDir != null && this.changes == null) {
+            String sourcePath = relativize(sourceFile);
+            IncrementalIndex index = this.index;
+            if (index != null) {
+                index.remove(sourcePath);
+            }
+            try {
+                Path outputFile = this.outputDir.resolve(sourcePath);
+                Files.createDirectories(outputFile.getParent());
+                Files.copy(sourceFile, outputFile, StandardCopyOption.REPLACE_EXISTING);
+                this.outputs.put(sourcePath, sourcePath);
+            } catch (IOException e) {
+                cause.addSuppressed(e);
+            }
+        }
+
+        this.errors.add(new SourceError(sourceFile, stage, processor, cause));
+    }
+
+    Requestor createRequestor(int files) {
+        return new Requestor(files, this.watchdog != null ? this.watchdog.createMonitor(files) : null);
+    }
+
+    Map<String, ITypeBinding> createTypeBindings(Collection<String> classNames) {
+        Requestor requestor = this.activeRequestor.get();
+        if (requestor == null) {
+            throw new IllegalStateException("Bindings can only be created while processing a file");
+        }
+
+        Map<String, ITypeBinding> result = new HashMap<>();
+        Set<String> missing = new LinkedHashSet<>();
+        for (String className : classNames) {
+            if (requestor.typeBindings.containsKey(className)) {
+                ITypeBinding binding = requestor.typeBindings.get(className);
+                if (binding != null) {
+                    result.put(className, binding);
+                }
+            } else if (!Mercury.isAnonymousOrLocalType(className)) {
+                // The binding keys of anonymous and local types contain source positions,
+                // which can't be derived from the binary name, see Mercury.createTypeBindings
+                missing.add(className);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            // Resolve all missing keys at once, each call sets up the lookup environment
+            String[] keys = new String[missing.size()];
+            int i = 0;
+            for (String className : missing) {
+                keys[i++] = 'L' + className.replace('.', '/') + ';';
+            }
+
+            IBinding[] bindings = requestor.createBindings(keys);
+            i = 0;
+            for (String className : missing) {
+                IBinding binding = bindings[i++];
+                ITypeBinding type = binding != null && binding.getKind() == IBinding.TYPE ? (ITypeBinding) binding : null;
+                requestor.typeBindings.put(className, type);
+                if (type != null) {
+                    result.put(className, type);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the processors to call for each file. If files are processed
+     * on multiple threads, processors which are not
+     * {@link SourceProcessor#FLAG_THREAD_SAFE thread-safe} are wrapped so
+     * only one thread calls them at a time.
+     */
+    static List<SourceProcessor> dispatch(List<SourceProcessor> processors, boolean concurrent) {
+        if (!concurrent) {
+            return processors;
+        }
+
+        List<SourceProcessor> result = new ArrayList<>(processors.size());
+        for (SourceProcessor processor : processors) {
+            result.add((processor.getFlags() & SourceProcessor.FLAG_THREAD_SAFE) != 0
+                    ? processor : new SerialProcessor(processor));
+        }
+        return result;
+    }
+
+    private SourceContext createContext(String sourceFilePath, CompilationUnit ast) {
+        Path sourceFile = Paths.get(sourceFilePath);
+        String fileName = sourceFile.getFileName().toString();
+        String primaryType = fileName.substring(0, fileName.length() - Mercury.JAVA_EXTENSION.length());
+
+        if (this.outputDir != null || this.patchWriter != null || this.changes != null) {
+            return new RewriteContext(this, sourceFile, ast, primaryType);
+        } else {
+            return new SourceContext(this, sourceFile, ast, primaryType);
+        }
+    }
+
+    /**
+     * Processes a parsed file.
+     *
+     * @param parseNanos The time spent parsing the file and resolving its bindings
+     * @param monitor The monitor of the file's time budget, if any
+     * @return Whether the file was processed in this pass
+     */
+    boolean accept(String sourceFilePath, CompilationUnit ast, long parseNanos, @Nullable FileWatchdog.Monitor monitor) {
+        if (this.classPathMisses != null && Mercury.hasClassPathProblems(ast)) {
+            this.classPathMisses.add(sourceFilePath);
+            return false;
+        }
+
+        SourceContext context = createContext(sourceFilePath, ast);
+        context.monitor = monitor;
+        if (this.mercury.getSlowFileThreshold() != null) {
+            context.timed = true;
+            context.parseNanos = parseNanos;
+        }
+
+        try {
+            context.process(this.processors);
+            if (!(context instanceof RewriteContext)) {
+                // Rewrites are reported once they were written
+                context.reportTimings();
+            }
+        } catch (Exception | StackOverflowError e) {
+            // The index is -1 if the processors succeeded, but their changes could not be applied
+            String processor = context.processorIndex >= 0
+                    ? this.mercury.getProcessors().get(context.processorIndex).getClass().getName() : null;
+
+            if (monitor != null && monitor.isTimedOut()) {
+                // Canceled by the watchdog, whatever exception the cancellation ended up as
+                fail(context.getSourceFile(), SourceError.Stage.TIMEOUT, processor, this.watchdog.timeout(e));
+                return true;
+            }
+
+            if (!this.mercury.isContinueOnError()) {
+                if (e instanceof Error) {
+                    throw (Error) e;
+                }
+                throw new RuntimeException("Failed to process: " + sourceFilePath, e);
+            }
+
+            fail(context.getSourceFile(), SourceError.Stage.PROCESS, processor, e);
+        } finally {
+            context.monitor = null;
+        }
+        return true;
+    }
+
+    final class Requestor extends FileASTRequestor {
+
+        // Bindings are only valid for the parser that created them
+        final Map<String, ITypeBinding> typeBindings = new HashMap<>();
+        // The files passed to this requestor, to find the file the compiler failed on
+        final Set<String> accepted = new HashSet<>();
+        // JDT parses all files of the batch before it accepts the first one, then
+        // resolves each file right before it is accepted. The time until the first
+        // file covers the setup and parsing of the whole batch and is split evenly
+        // between its files, the time since the previous file covers resolving this one.
+        private final int files;
+        private long lastAccepted = System.nanoTime();
+        private long batchShare = -1;
+        // Cancels the compiler and processors once a file exceeds its time budget
+        @Nullable
+        final FileWatchdog.Monitor monitor;
+
+        private Requestor(int files, @Nullable FileWatchdog.Monitor monitor) {
+            this.files = Math.max(1, files);
+            this.monitor = monitor;
+        }
+
+        private long parseNanos(long now) {
+            long elapsed = now - this.lastAccepted;
+            if (this.batchShare < 0) {
+                this.batchShare = elapsed / this.files;
+                return this.batchShare;
+            }
+            return elapsed + this.batchShare;
+        }
+
+        boolean isTimedOut() {
+            return this.monitor != null && this.monitor.isTimedOut();
+        }
+
+        void stop() {
+            if (this.monitor != null) {
+                this.monitor.stop();
+            }
+        }
+
+        @Override
+        public void acceptAST(String sourceFilePath, CompilationUnit ast) {
+            this.accepted.add(sourceFilePath);
+            MercuryRun.this.activeRequestor.set(this);
+            long start = System.nanoTime();
+            long parseNanos = parseNanos(start);
+            boolean processed = false;
+            try {
+                processed = accept(sourceFilePath, ast, parseNanos, this.monitor);
+            } finally {
+                MercuryRun.this.activeRequestor.remove();
+                if (this.monitor != null) {
+                    this.monitor.restart();
+                }
+
+                long now = System.nanoTime();
+                Map<String, Long> durations = MercuryRun.this.durations;
+                if (processed && durations != null) {
+                    durations.put(relativize(Paths.get(sourceFilePath)), parseNanos + now - start);
+                }
+                this.lastAccepted = now;
+            }
+        }
+
+    }
+
+    private static final class SerialProcessor implements SourceProcessor {
+
+        private final SourceProcessor processor;
+
+        SerialProcessor(SourceProcessor processor) {
+            this.processor = processor;
+        }
+
+        @Override
+        public int getFlags() {
+            return this.processor.getFlags();
+        }
+
+        @Override
+        public void process(SourceContext context) throws Exception {
+            synchronized (this.processor) {
+                this.processor.process(context);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2018 Cadix Development (https://www.cadixdev.org)
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which accompanies this distribution,
+ * and is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.cadixdev.mercury;
+
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.IDocument;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Encodes documents directly into files, chunk by chunk, without copying
+ * the whole document into a string first. The encoders and their buffers
+ * are pooled, since output may be written on short-lived virtual threads.
+ * Only the pooled encoders use direct buffers, any others fall back to
+ * heap buffers, so direct memory is not left to the garbage collector.
+ */
+final class OutputEncoder {
+
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final int MAX_POOLED = 16;
+
+    private static final Queue<OutputEncoder> POOL = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger DIRECT_BUFFERS = new AtomicInteger();
+
+    private CharsetEncoder encoder;
+    private final CharBuffer chars = CharBuffer.allocate(CHUNK_SIZE);
+    private final ByteBuffer bytes;
+
+    private OutputEncoder(Charset charset) {
+        this.encoder = newEncoder(charset);
+        if (DIRECT_BUFFERS.incrementAndGet() <= MAX_POOLED) {
+            this.bytes = ByteBuffer.allocateDirect(CHUNK_SIZE * 4);
+        } else {
+            DIRECT_BUFFERS.decrementAndGet();
+            this.bytes = ByteBuffer.allocate(CHUNK_SIZE * 4);
+        }
+    }
+
+    private static CharsetEncoder newEncoder(Charset charset) {
+        // Same behaviour as OutputStreamWriter
+        return charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Writes the content of the document to the given file, replacing it
+     * if it exists.
+     *
+     * @param document The document to write
+     * @param file The file to write to
+     * @param charset The charset to encode the document with
+     * @throws IOException If the file could not be written
+     */
+    static void write(IDocument document, Path file, Charset charset) throws IOException {
+        OutputEncoder encoder = acquire(charset);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            encoder.encode(document, channel);
+        } catch (BadLocationException e) {
+            // Only happens if the document is changed while it is written
+            throw new IllegalStateException("Document was modified while writing: " + file, e);
+        } finally {
+            release(encoder);
+        }
+    }
+
+    private static OutputEncoder acquire(Charset charset) {
+        OutputEncoder encoder = POOL.poll();
+        if (encoder == null) {
+            return new OutputEncoder(charset);
+        }
+        // The buffers don't depend on the charset, only the encoder does
+        if (!encoder.encoder.charset().equals(charset)) {
+            encoder.encoder = newEncoder(charset);
+        }
+        return encoder;
+    }
+
+    private static void release(OutputEncoder encoder) {
+        // There are at most MAX_POOLED encoders with direct buffers, so they are always kept.
+        // For the others the size is only a rough limit, it does not need to be exact
+        if (encoder.bytes.isDirect() || POOL.size() < MAX_POOLED) {
+            POOL.offer(encoder);
+        }
+    }
+
+    private void encode(IDocument document, FileChannel channel) throws IOException, BadLocationException {
+        this.encoder.reset();
+        this.chars.clear();
+        this.bytes.clear();
+
+        int length = document.getLength();
+        int offset = 0;
+        boolean endOfInput = false;
+        while (!endOfInput) {
+            // Characters left over from the previous chunk (e.g. a high surrogate) stay at the start
+            int count = Math.min(this.chars.remaining(), length - offset);
+            document.get(offset, count).getChars(0, count, this.chars.array(), this.chars.position());
+            this.chars.position(this.chars.position() + count);
+            offset += count;
+            endOfInput = offset == length;
+
+            this.chars.flip();
+            CoderResult result;
+            while ((result = this.encoder.encode(this.chars, this.bytes, endOfInput)).isOverflow()) {
+                flush(channel);
+            }
+            if (result.isError()) {
+                result.throwException();
+            }
+            this.chars.compact();
+        }
+
+        while (this.encoder.flush(this.bytes).isOverflow()) {
+            flush(channel);
+        }
+        flush(channel);
+    }
+
+    private void flush(FileChannel channel) throws IOException {
+        this.bytes.flip();
+        while (this.bytes.hasRemaining()) {
+            channel.write(this.bytes);
+        }
+        this.bytes.clear();
+    }
+
+}
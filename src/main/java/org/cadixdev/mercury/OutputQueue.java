@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2018 Cadix Development (https://www.cadixdev.org)
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which accompanies this distribution,
+ * and is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.cadixdev.mercury;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs the output of processed files in the background, so the parser
+ * thread can continue with the next file. Uses virtual threads if the
+ * runtime supports them, and a pool of platform threads otherwise.
+ */
+final class OutputQueue implements AutoCloseable {
+
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    OutputQueue(int concurrency) {
+        this.executor = newExecutor(concurrency);
+        this.permits = new Semaphore(concurrency);
+    }
+
+    private static ExecutorService newExecutor(int concurrency) {
+        try {
+            // Virtual threads are only available on Java 21+
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(concurrency, r -> {
+                Thread thread = new Thread(r, "Mercury Output");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Submits the output of a file. Blocks while the maximum number of
+     * files are already being written.
+     *
+     * @param sourceFile The file the output belongs to, for error reporting
+     * @param task The task writing the output
+     */
+    void submit(String sourceFile, Task task) throws InterruptedException {
+        if (this.failure.get() != null) {
+            // Stop accepting work, the failure is reported on close
+            return;
+        }
+
+        this.permits.acquire();
+        try {
+            this.executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    // Errors are kept as they are, so they are not mistaken for a failed write
+                    this.failure.compareAndSet(null, t instanceof Error ? t : new RuntimeException("Failed to write: " + sourceFile, t));
+                } finally {
+                    this.permits.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            this.permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Waits until all submitted output was written.
+     *
+     * @throws Exception The first failure of a submitted task
+     * @throws Error The first error thrown by a submitted task
+     */
+    @Override
+    public void close() throws Exception {
+        this.executor.shutdown();
+        while (!this.executor.awaitTermination(1, TimeUnit.MINUTES)) {
+            // Keep waiting, writes may be slow on network filesystems
+        }
+
+        Throwable failure = this.failure.get();
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw (Exception) failure;
+        }
+    }
+
+    @FunctionalInterface
+    interface Task {
+
+        void run() throws Exception;
+
+    }
+
+}
@@ -1,111 +1,591 @@
 package org.cadixdev.mercury;
 
 
-import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 
 public class ParchmentTree {
 
     private final Map<String, Class> tree;
+    @Nullable
+    private final ParchmentTreeCache cache;
+    private final NameTable classNames;
 
     private ParchmentTree(Map<String, Class> tree) {
         this.tree = tree;
+        this.cache = null;
+        this.classNames = new NameTable(tree.keySet());
+    }
+
+    private ParchmentTree(ParchmentTreeCache cache) {
+        this.tree = new ConcurrentHashMap<>();
+        this.cache = cache;
+        this.classNames = new NameTable(cache.getClassNames());
     }
 
-    private static Optional<Javadoc> parseJavadoc(final JsonObject parent) {
-        if (!parent.has("javadoc")) {
-            return Optional.empty();
+    public static ParchmentTree loadFile(final Path path) throws IOException {
+        try (JsonReader reader = new JsonReader(Files.newBufferedReader(path, StandardCharsets.UTF_8))) {
+            return read(reader);
         }
-        return Optional.of(new Javadoc(
-                parent.get("javadoc").getAsJsonArray().asList().stream().map(JsonElement::getAsString).toList()
-        ));
     }
 
-    private static Map<Integer, Parameter> parseParameters(final JsonArray array) {
-        return array.asList().stream().map(JsonElement::getAsJsonObject).map(obj -> Map.entry(
-                obj.get("index").getAsInt(),
-                new Parameter(
-                        obj.get("name").getAsString(),
-                        parseJavadoc(obj)
-                )
-        )).collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+    public static ParchmentTree fromJson(JsonElement node) {
+        try {
+            return read(new JsonReader(new StringReader(node.toString())));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
-    private static Map<Pair, Method> parseMethods(final JsonArray array) {
-        return array.asList().stream().map(JsonElement::getAsJsonObject).map((obj) -> Map.entry(
-                new Pair(obj.get("name").getAsString(), obj.get("descriptor").getAsString()),
-                new Method(
-                        !obj.has("parameters") ? Map.of() : parseParameters(obj.get("parameters").getAsJsonArray()),
-                        parseJavadoc(obj))
-        )).collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+    /**
+     * Reads a Parchment export directly from the given reader, without first
+     * building a JSON tree of the whole file.
+     *
+     * @param reader The reader positioned before the root object
+     * @return The parsed tree
+     * @throws IOException If the JSON could not be read
+     */
+    public static ParchmentTree read(JsonReader reader) throws IOException {
+        return new Loader(reader).readRoot();
     }
 
-    private static Map<Pair, Field> parseFields(final JsonArray array) {
-        return array.asList().stream().map(JsonElement::getAsJsonObject).map((obj) -> Map.entry(
-                new Pair(obj.get("name").getAsString(), obj.get("descriptor").getAsString()),
-                new Field(parseJavadoc(obj))
-        )).collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+    /**
+     * Loads a tree from a binary snapshot written by {@link #saveCache(Path)}.
+     * The snapshot is memory-mapped and classes are only decoded once they
+     * are first looked up.
+     *
+     * @param path The snapshot file
+     * @return The tree backed by the snapshot
+     * @throws IOException If the snapshot could not be read
+     */
+    public static ParchmentTree loadCache(final Path path) throws IOException {
+        return new ParchmentTree(ParchmentTreeCache.map(path));
     }
 
-    private static Class parseClass(JsonObject obj) {
-        return new Class(
-                !obj.has("methods") ? Map.of() : parseMethods(obj.getAsJsonArray("methods")),
-                !obj.has("fields") ? Map.of() : parseFields(obj.getAsJsonArray("fields"))
-        );
+    /**
+     * Loads the Parchment export at the given path, using the binary snapshot
+     * at {@code cachePath} if it is at least as new as the export. Otherwise,
+     * or if the snapshot is corrupt, the export is parsed and a new snapshot
+     * is written. Failing to write the snapshot is ignored.
+     *
+     * @param path The Parchment export
+     * @param cachePath The snapshot file
+     * @return The loaded tree
+     * @throws IOException If the export could not be read
+     */
+    public static ParchmentTree loadFile(final Path path, final Path cachePath) throws IOException {
+        return loadFile(path, cachePath, e -> {
+        });
     }
 
-    private static Map<String, Class> parseClasses(JsonArray array) {
+    /**
+     * Loads the Parchment export at the given path, using the binary snapshot
+     * at {@code cachePath} if it is at least as new as the export. Otherwise,
+     * or if the snapshot is corrupt, the export is parsed and a new snapshot
+     * is written.
+     *
+     * @param path The Parchment export
+     * @param cachePath The snapshot file
+     * @param cacheErrorHandler Receives the errors of reading or writing the
+     *     snapshot, which do not fail loading the tree
+     * @return The loaded tree
+     * @throws IOException If the export could not be read
+     */
+    public static ParchmentTree loadFile(final Path path, final Path cachePath, final Consumer<IOException> cacheErrorHandler)
+            throws IOException {
+        if (Files.isRegularFile(cachePath)
+                && Files.getLastModifiedTime(cachePath).compareTo(Files.getLastModifiedTime(path)) >= 0) {
+            try {
+                return loadCache(cachePath);
+            } catch (IOException e) {
+                // Rebuilt from the export below
+                cacheErrorHandler.accept(e);
+            }
+        }
 
-        return array.asList().stream().map(JsonElement::getAsJsonObject).map((obj) -> Map.entry(
-                obj.get("name").getAsString(),
-                parseClass(obj)
-        )).collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        ParchmentTree tree = loadFile(path);
+        try {
+            tree.saveCache(cachePath);
+        } catch (IOException e) {
+            // The tree works without the snapshot, the next load just parses the export again
+            cacheErrorHandler.accept(e);
+        }
+        return tree;
     }
 
-    public static ParchmentTree loadFile(final Path path) throws IOException {
-        var json = new JsonParser().parse(new InputStreamReader(Files.newInputStream(path), StandardCharsets.UTF_8));
-        return fromJson(json);
-    }
-    public static ParchmentTree fromJson(JsonElement node) {
-        var classes = node.getAsJsonObject().getAsJsonArray("classes");
-        if (classes == null) throw new RuntimeException("Not a valid parchment json");
+    public void saveCache(final Path path) throws IOException {
+        Map<String, Class> classes;
+        if (this.cache != null) {
+            classes = new LinkedHashMap<>();
+            for (String name : this.cache.getClassNames()) {
+                classes.put(name, findClass(name));
+            }
+        } else {
+            classes = this.tree;
+        }
 
-        return new ParchmentTree(parseClasses(classes));
+        ParchmentTreeCache.write(classes, path);
     }
 
-
+    @Nullable
+    private Class findClass(String className) {
+        var clazz = this.tree.get(className);
+        if (clazz != null || this.cache == null || !this.cache.contains(className)) {
+            return clazz;
+        }
+        return this.tree.computeIfAbsent(className, this.cache::decode);
+    }
 
     @Nullable
     public Method getMethod(String className, String methodName, String descriptor) {
-        var clazz = tree.get(className);
+        var clazz = findClass(className);
         if (clazz == null) return null;
 
-        return clazz.methods.get(new Pair(methodName, descriptor));
+        var methods = clazz.methods.get(methodName);
+        return methods != null ? methods.get(descriptor) : null;
     }
     @Nullable
     public Field getField(String className, String fieldName, String descriptor) {
-        var clazz = tree.get(className);
+        var clazz = findClass(className);
+        if (clazz == null) return null;
+
+        var fields = clazz.fields.get(fieldName);
+        return fields != null ? fields.get(descriptor) : null;
+    }
+
+    /**
+     * Checks whether the given JDT method binding key can be used with
+     * {@link #getMethodByKey(String)}. This is not the case for generic
+     * methods, methods using generic types in their signature and methods
+     * of local or anonymous classes, since their keys do not contain the
+     * erased descriptor.
+     *
+     * @param key The binding key, as returned by {@code IMethodBinding.getKey()}
+     * @return Whether the key can be looked up directly
+     */
+    public static boolean isErasedMethodKey(String key) {
+        return KEYS.get().parse(key);
+    }
+
+    /**
+     * Looks up a method using its JDT binding key, e.g.
+     * {@code Ltest/ObfClass;.name()Ljava/lang/String;}, without building
+     * the class name or descriptor. See {@link #isErasedMethodKey(String)}
+     * for the keys which are supported.
+     *
+     * @param key The binding key of the method declaration
+     * @return The method, or {@code null} if it has no mapping or the key is not supported
+     */
+    @Nullable
+    public Method getMethodByKey(String key) {
+        KeyLookup lookup = KEYS.get();
+        if (!lookup.parse(key)) return null;
+
+        String className = this.classNames.find(lookup.className);
+        if (className == null) return null;
+        var clazz = findClass(className);
         if (clazz == null) return null;
-        
-        return clazz.fields.get(new Pair(fieldName, descriptor));
+
+        var methods = lookup.isConstructor() ? clazz.methods.get("<init>") : find(clazz.methods, lookup.name);
+        return methods != null ? find(methods, lookup.descriptor) : null;
+    }
+
+    /**
+     * Finds the value of the key with the same contents as the given view.
+     * The members of a single class are few, so they are compared directly
+     * instead of hashing the view.
+     */
+    @Nullable
+    private static <V> V find(Map<String, V> map, KeyView key) {
+        for (Map.Entry<String, V> entry : map.entrySet()) {
+            if (key.contentEquals(entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+        return null;
     }
 
+    private static final ThreadLocal<KeyLookup> KEYS = ThreadLocal.withInitial(KeyLookup::new);
+
+    /**
+     * Splits a method binding key into its class, name and descriptor parts,
+     * which are matched against the names of the tree without allocating
+     * substrings.
+     */
+    private static final class KeyLookup {
+
+        final KeyView className = new KeyView();
+        final KeyView name = new KeyView();
+        final KeyView descriptor = new KeyView();
+
+        boolean isConstructor() {
+            // JDT leaves out the selector of constructors
+            return this.name.length() == 0;
+        }
+
+        boolean parse(String key) {
+            int length = key.length();
+            if (length == 0 || key.charAt(0) != 'L') return false;
+
+            int i = 1;
+            while (i < length && key.charAt(i) != ';' && key.charAt(i) != '<') {
+                // Local and anonymous classes use source positions instead of their index
+                if (key.charAt(i) == '$' && i + 1 < length && Character.isDigit(key.charAt(i + 1))) return false;
+                i++;
+            }
+            int classEnd = i;
+
+            if (i < length && key.charAt(i) == '<') {
+                // Skip the type parameters of a generic class declaration
+                int depth = 0;
+                do {
+                    char c = key.charAt(i++);
+                    if (c == '<') depth++;
+                    else if (c == '>') depth--;
+                } while (depth > 0 && i < length);
+            }
+
+            if (i + 1 >= length || key.charAt(i) != ';' || key.charAt(i + 1) != '.') return false;
+            int nameStart = i + 2;
+
+            i = nameStart;
+            while (i < length && key.charAt(i) != '(') {
+                // Type parameters of generic methods
+                if (key.charAt(i) == '<') return false;
+                i++;
+            }
+            if (i >= length) return false;
+            int descriptorStart = i++;
+
+            while (i < length && key.charAt(i) != ')') {
+                i = skipType(key, i);
+                if (i < 0) return false;
+            }
+            if (i >= length) return false;
+            i++;
+
+            i = i < length && key.charAt(i) == 'V' ? i + 1 : skipType(key, i);
+            if (i < 0 || i < length && key.charAt(i) != '|' && key.charAt(i) != '^') return false;
+
+            this.className.set(key, 1, classEnd);
+            this.name.set(key, nameStart, descriptorStart);
+            this.descriptor.set(key, descriptorStart, i);
+            return true;
+        }
+
+        private static int skipType(String key, int i) {
+            int length = key.length();
+            while (i < length && key.charAt(i) == '[') {
+                i++;
+            }
+            if (i >= length) return -1;
+
+            switch (key.charAt(i)) {
+                case 'B', 'C', 'D', 'F', 'I', 'J', 'S', 'Z':
+                    return i + 1;
+                case 'L':
+                    for (int j = i + 1; j < length; j++) {
+                        char c = key.charAt(j);
+                        if (c == ';') return j + 1;
+                        // Parameterized or nested parameterized types
+                        if (c == '<' || c == '.') return -1;
+                    }
+                    return -1;
+                default:
+                    // Type variables, wildcards and captures
+                    return -1;
+            }
+        }
+
+    }
+
+    /**
+     * A view of a region of a string, which hashes like the {@link String}
+     * with the same contents. It does not override {@code equals}, since it
+     * could never be equal to a string symmetrically, so it must not be used
+     * as the key of a map. Use {@link NameTable} or {@link #contentEquals(String)}
+     * to compare it against strings instead.
+     */
+    private static final class KeyView implements CharSequence {
+
+        private String source;
+        private int start;
+        private int end;
+
+        void set(String source, int start, int end) {
+            this.source = source;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public int length() {
+            return this.end - this.start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return this.source.charAt(this.start + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return this.source.substring(this.start + start, this.start + end);
+        }
+
+        @Override
+        public int hashCode() {
+            // Same as String.hashCode()
+            int hash = 0;
+            for (int i = this.start; i < this.end; i++) {
+                hash = 31 * hash + this.source.charAt(i);
+            }
+            return hash;
+        }
+
+        boolean contentEquals(String other) {
+            return other.length() == length() && this.source.regionMatches(this.start, other, 0, length());
+        }
+
+        @Override
+        public String toString() {
+            return this.source.substring(this.start, this.end);
+        }
+
+    }
+
+    /**
+     * An open addressing set of the class names of a tree, which finds the
+     * name with the same contents as a {@link KeyView} without allocating
+     * it. The table is never modified after it is built, so it can be read
+     * concurrently.
+     */
+    private static final class NameTable {
+
+        private final String[] names;
+        private final int mask;
+
+        NameTable(Collection<String> names) {
+            // Keep the table at most half full
+            int capacity = Integer.highestOneBit(Math.max(2, names.size() * 2) - 1) << 1;
+            this.names = new String[capacity];
+            this.mask = capacity - 1;
+            for (String name : names) {
+                int i = index(name.hashCode());
+                while (this.names[i] != null) {
+                    i = (i + 1) & this.mask;
+                }
+                this.names[i] = name;
+            }
+        }
+
+        private int index(int hash) {
+            return (hash ^ (hash >>> 16)) & this.mask;
+        }
+
+        @Nullable
+        String find(KeyView key) {
+            for (int i = index(key.hashCode()); this.names[i] != null; i = (i + 1) & this.mask) {
+                if (key.contentEquals(this.names[i])) {
+                    return this.names[i];
+                }
+            }
+            return null;
+        }
+
+    }
+
+    /**
+     * Streams a Parchment export into the final tree structures. Names and
+     * descriptors repeat a lot throughout an export, so they are interned
+     * while loading.
+     */
+    private static final class Loader {
+
+        private final JsonReader reader;
+        private final Map<String, String> strings = new HashMap<>();
+
+        Loader(JsonReader reader) {
+            this.reader = reader;
+        }
+
+        private String intern(String value) {
+            String existing = this.strings.putIfAbsent(value, value);
+            return existing != null ? existing : value;
+        }
+
+        private String nextString() throws IOException {
+            return intern(this.reader.nextString());
+        }
+
+        ParchmentTree readRoot() throws IOException {
+            Map<String, Class> classes = null;
+
+            this.reader.beginObject();
+            while (this.reader.hasNext()) {
+                if (this.reader.nextName().equals("classes") && this.reader.peek() == JsonToken.BEGIN_ARRAY) {
+                    classes = readClasses();
+                } else {
+                    this.reader.skipValue();
+                }
+            }
+            this.reader.endObject();
+
+            if (classes == null) throw new RuntimeException("Not a valid parchment json");
+            return new ParchmentTree(classes);
+        }
+
+        private Map<String, Class> readClasses() throws IOException {
+            Map<String, Class> classes = new HashMap<>();
+
+            this.reader.beginArray();
+            while (this.reader.hasNext()) {
+                String name = null;
+                Map<String, Map<String, Method>> methods = Map.of();
+                Map<String, Map<String, Field>> fields = Map.of();
+
+                this.reader.beginObject();
+                while (this.reader.hasNext()) {
+                    switch (this.reader.nextName()) {
+                        case "name" -> name = nextString();
+                        case "methods" -> methods = readMethods();
+                        case "fields" -> fields = readFields();
+                        default -> this.reader.skipValue();
+                    }
+                }
+                this.reader.endObject();
+
+                classes.put(name, new Class(methods, fields));
+            }
+            this.reader.endArray();
+
+            return classes;
+        }
+
+        private Map<String, Map<String, Method>> readMethods() throws IOException {
+            Map<String, Map<String, Method>> methods = new HashMap<>();
+
+            this.reader.beginArray();
+            while (this.reader.hasNext()) {
+                String name = null;
+                String descriptor = null;
+                Map<Integer, Parameter> parameters = Map.of();
+                Optional<Javadoc> javadoc = Optional.empty();
+
+                this.reader.beginObject();
+                while (this.reader.hasNext()) {
+                    switch (this.reader.nextName()) {
+                        case "name" -> name = nextString();
+                        case "descriptor" -> descriptor = nextString();
+                        case "parameters" -> parameters = readParameters();
+                        case "javadoc" -> javadoc = readJavadoc();
+                        default -> this.reader.skipValue();
+                    }
+                }
+                this.reader.endObject();
+
+                methods.computeIfAbsent(name, k -> new HashMap<>()).put(descriptor, new Method(parameters, javadoc));
+            }
+            this.reader.endArray();
+
+            return methods;
+        }
+
+        private Map<String, Map<String, Field>> readFields() throws IOException {
+            Map<String, Map<String, Field>> fields = new HashMap<>();
+
+            this.reader.beginArray();
+            while (this.reader.hasNext()) {
+                String name = null;
+                String descriptor = null;
+                Optional<Javadoc> javadoc = Optional.empty();
+
+                this.reader.beginObject();
+                while (this.reader.hasNext()) {
+                    switch (this.reader.nextName()) {
+                        case "name" -> name = nextString();
+                        case "descriptor" -> descriptor = nextString();
+                        case "javadoc" -> javadoc = readJavadoc();
+                        default -> this.reader.skipValue();
+                    }
+                }
+                this.reader.endObject();
+
+                fields.computeIfAbsent(name, k -> new HashMap<>()).put(descriptor, new Field(javadoc));
+            }
+            this.reader.endArray();
+
+            return fields;
+        }
+
+        private Map<Integer, Parameter> readParameters() throws IOException {
+            Map<Integer, Parameter> parameters = new HashMap<>();
+
+            this.reader.beginArray();
+            while (this.reader.hasNext()) {
+                int index = -1;
+                String name = null;
+                Optional<Javadoc> javadoc = Optional.empty();
+
+                this.reader.beginObject();
+                while (this.reader.hasNext()) {
+                    switch (this.reader.nextName()) {
+                        case "index" -> index = this.reader.nextInt();
+                        case "name" -> name = nextString();
+                        case "javadoc" -> javadoc = readJavadoc();
+                        default -> this.reader.skipValue();
+                    }
+                }
+                this.reader.endObject();
+
+                parameters.put(index, new Parameter(name, javadoc));
+            }
+            this.reader.endArray();
+
+            return parameters;
+        }
+
+        private Optional<Javadoc> readJavadoc() throws IOException {
+            switch (this.reader.peek()) {
+                case NULL -> {
+                    this.reader.nextNull();
+                    return Optional.empty();
+                }
+                case STRING -> {
+                    // Parameter docs are exported as a single line
+                    return Optional.of(new Javadoc(List.of(this.reader.nextString())));
+                }
+                default -> {
+                    List<String> lines = new ArrayList<>();
+                    this.reader.beginArray();
+                    while (this.reader.hasNext()) {
+                        lines.add(this.reader.nextString());
+                    }
+                    this.reader.endArray();
+                    return Optional.of(new Javadoc(List.copyOf(lines)));
+                }
+            }
+        }
 
-    public record Pair(String name, String desc) {
     }
 
     public record Javadoc(List<String> data) {
@@ -120,7 +600,10 @@ public record Method(Map<Integer, Parameter> parameters, Optional<Javadoc> javad
     public record Field(Optional<Javadoc> javadoc) {
     }
 
-    public record Class(Map<Pair, Method> methods, Map<Pair, Field> fields) {
+    /**
+     * The members of a class, keyed by their name and then their descriptor.
+     */
+    public record Class(Map<String, Map<String, Method>> methods, Map<String, Map<String, Field>> fields) {
 
     }
 
@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) 2018 Cadix Development (https://www.cadixdev.org)
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which accompanies this distribution,
+ * and is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.cadixdev.mercury;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * A compact binary snapshot of a {@link ParchmentTree}.
+ *
+ * <p>The snapshot consists of a string table, an index of class names to
+ * the offset of their encoded members and the encoded classes themselves,
+ * followed by the magic number again to detect truncated files. Snapshots are memory-mapped when loaded, and classes are only decoded
+ * once they are looked up.</p>
+ */
+final class ParchmentTreeCache {
+
+    private static final int MAGIC = 0x50434854; // PCHT
+    private static final int VERSION = 2;
+
+    private static final int NO_JAVADOC = -1;
+
+    private final ByteBuffer buffer;
+    private final int[] stringOffsets;
+    private final String[] strings;
+    private final Map<String, Integer> classOffsets;
+
+    private ParchmentTreeCache(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+
+        // The magic is repeated at the end, so a truncated snapshot is detected before classes are decoded
+        int limit = buffer.limit();
+        if (limit < 12 || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getInt(limit - 4) != MAGIC) {
+            throw new IOException("Not a valid parchment cache");
+        }
+
+        try {
+            Cursor cursor = new Cursor(8);
+            this.stringOffsets = new int[cursor.next()];
+            for (int i = 0; i < this.stringOffsets.length; i++) {
+                this.stringOffsets[i] = cursor.next();
+            }
+            this.strings = new String[this.stringOffsets.length];
+
+            int classCount = cursor.next();
+            this.classOffsets = new HashMap<>(classCount * 4 / 3 + 1);
+            for (int i = 0; i < classCount; i++) {
+                this.classOffsets.put(string(cursor.next()), cursor.next());
+            }
+        } catch (IndexOutOfBoundsException | NegativeArraySizeException e) {
+            throw new IOException("Corrupt parchment cache", e);
+        }
+    }
+
+    static ParchmentTreeCache map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new ParchmentTreeCache(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    boolean contains(String className) {
+        return this.classOffsets.containsKey(className);
+    }
+
+    Collection<String> getClassNames() {
+        return this.classOffsets.keySet();
+    }
+
+    private String string(int index) {
+        // Concurrent lookups may decode the same string twice, which is harmless
+        String value = this.strings[index];
+        if (value == null) {
+            int offset = this.stringOffsets[index];
+            byte[] bytes = new byte[this.buffer.getInt(offset)];
+            this.buffer.get(offset + 4, bytes);
+            this.strings[index] = value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+
+    @Nullable
+    ParchmentTree.Class decode(String className) {
+        Integer offset = this.classOffsets.get(className);
+        if (offset == null) {
+            return null;
+        }
+
+        Cursor cursor = new Cursor(offset);
+
+        int methodCount = cursor.next();
+        Map<String, Map<String, ParchmentTree.Method>> methods = methodCount == 0 ? Map.of() : new HashMap<>();
+        for (int i = 0; i < methodCount; i++) {
+            String name = string(cursor.next());
+            String descriptor = string(cursor.next());
+            Optional<ParchmentTree.Javadoc> javadoc = decodeJavadoc(cursor);
+
+            int parameterCount = cursor.next();
+            Map<Integer, ParchmentTree.Parameter> parameters = parameterCount == 0 ? Map.of() : new HashMap<>();
+            for (int j = 0; j < parameterCount; j++) {
+                int index = cursor.next();
+                parameters.put(index, new ParchmentTree.Parameter(string(cursor.next()), decodeJavadoc(cursor)));
+            }
+
+            methods.computeIfAbsent(name, k -> new HashMap<>()).put(descriptor, new ParchmentTree.Method(parameters, javadoc));
+        }
+
+        int fieldCount = cursor.next();
+        Map<String, Map<String, ParchmentTree.Field>> fields = fieldCount == 0 ? Map.of() : new HashMap<>();
+        for (int i = 0; i < fieldCount; i++) {
+            String name = string(cursor.next());
+            String descriptor = string(cursor.next());
+            fields.computeIfAbsent(name, k -> new HashMap<>()).put(descriptor, new ParchmentTree.Field(decodeJavadoc(cursor)));
+        }
+
+        return new ParchmentTree.Class(methods, fields);
+    }
+
+    private Optional<ParchmentTree.Javadoc> decodeJavadoc(Cursor cursor) {
+        int lineCount = cursor.next();
+        if (lineCount == NO_JAVADOC) {
+            return Optional.empty();
+        }
+
+        String[] lines = new String[lineCount];
+        for (int i = 0; i < lineCount; i++) {
+            lines[i] = string(cursor.next());
+        }
+        return Optional.of(new ParchmentTree.Javadoc(List.of(lines)));
+    }
+
+    static void write(Map<String, ParchmentTree.Class> classes, Path path) throws IOException {
+        Map<String, Integer> strings = new LinkedHashMap<>();
+
+        // Encode the classes first, so the string table is complete
+        ByteArrayOutputStream classData = new ByteArrayOutputStream();
+        DataOutputStream classOut = new DataOutputStream(classData);
+        List<int[]> index = new ArrayList<>(classes.size());
+
+        for (Map.Entry<String, ParchmentTree.Class> entry : classes.entrySet()) {
+            index.add(new int[]{stringIndex(strings, entry.getKey()), classOut.size()});
+            ParchmentTree.Class clazz = entry.getValue();
+
+            classOut.writeInt(count(clazz.methods()));
+            for (Map.Entry<String, Map<String, ParchmentTree.Method>> overloads : clazz.methods().entrySet()) {
+                for (Map.Entry<String, ParchmentTree.Method> method : overloads.getValue().entrySet()) {
+                    classOut.writeInt(stringIndex(strings, overloads.getKey()));
+                    classOut.writeInt(stringIndex(strings, method.getKey()));
+                    writeJavadoc(classOut, strings, method.getValue().javadoc());
+
+                    classOut.writeInt(method.getValue().parameters().size());
+                    for (Map.Entry<Integer, ParchmentTree.Parameter> parameter : method.getValue().parameters().entrySet()) {
+                        classOut.writeInt(parameter.getKey());
+                        classOut.writeInt(stringIndex(strings, parameter.getValue().name()));
+                        writeJavadoc(classOut, strings, parameter.getValue().javadoc());
+                    }
+                }
+            }
+
+            classOut.writeInt(count(clazz.fields()));
+            for (Map.Entry<String, Map<String, ParchmentTree.Field>> fields : clazz.fields().entrySet()) {
+                for (Map.Entry<String, ParchmentTree.Field> field : fields.getValue().entrySet()) {
+                    classOut.writeInt(stringIndex(strings, fields.getKey()));
+                    classOut.writeInt(stringIndex(strings, field.getKey()));
+                    writeJavadoc(classOut, strings, field.getValue().javadoc());
+                }
+            }
+        }
+
+        List<byte[]> encodedStrings = new ArrayList<>(strings.size());
+        for (String string : strings.keySet()) {
+            encodedStrings.add(string.getBytes(StandardCharsets.UTF_8));
+        }
+
+        // Write to a temporary file first, so other processes never map a partially written snapshot
+        Path parent = path.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path temp = Files.createTempFile(parent, path.getFileName().toString(), ".tmp");
+        try {
+            write(encodedStrings, index, classData, temp);
+            try {
+                Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static void write(List<byte[]> encodedStrings, List<int[]> index, ByteArrayOutputStream classData, Path path) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            int stringDataStart = 8 + 4 + encodedStrings.size() * 4 + 4 + index.size() * 8;
+            int offset = stringDataStart;
+            out.writeInt(encodedStrings.size());
+            for (byte[] string : encodedStrings) {
+                out.writeInt(offset);
+                offset += 4 + string.length;
+            }
+
+            int classDataStart = offset;
+            out.writeInt(index.size());
+            for (int[] entry : index) {
+                out.writeInt(entry[0]);
+                out.writeInt(classDataStart + entry[1]);
+            }
+
+            for (byte[] string : encodedStrings) {
+                out.writeInt(string.length);
+                out.write(string);
+            }
+
+            classData.writeTo(out);
+            out.writeInt(MAGIC);
+        }
+    }
+
+    private static void writeJavadoc(DataOutputStream out, Map<String, Integer> strings, Optional<ParchmentTree.Javadoc> javadoc) throws IOException {
+        if (javadoc.isEmpty()) {
+            out.writeInt(NO_JAVADOC);
+            return;
+        }
+
+        List<String> lines = javadoc.get().data();
+        out.writeInt(lines.size());
+        for (String line : lines) {
+            out.writeInt(stringIndex(strings, line));
+        }
+    }
+
+    private static int count(Map<String, ? extends Map<String, ?>> members) {
+        int count = 0;
+        for (Map<String, ?> overloads : members.values()) {
+            count += overloads.size();
+        }
+        return count;
+    }
+
+    private static int stringIndex(Map<String, Integer> strings, String value) {
+        Integer index = strings.get(value);
+        if (index == null) {
+            index = strings.size();
+            strings.put(value, index);
+        }
+        return index;
+    }
+
+    private final class Cursor {
+
+        private int position;
+
+        Cursor(int position) {
+            this.position = position;
+        }
+
+        int next() {
+            int value = ParchmentTreeCache.this.buffer.getInt(this.position);
+            this.position += 4;
+            return value;
+        }
+
+    }
+
+}
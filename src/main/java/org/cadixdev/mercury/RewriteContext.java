@@ -14,20 +14,31 @@
 
 import org.cadixdev.mercury.jdt.rewrite.imports.ImportRewrite;
 import org.eclipse.core.runtime.CoreException;
+import org.eclipse.jdt.core.dom.ASTNode;
+import org.eclipse.jdt.core.dom.ASTVisitor;
 import org.eclipse.jdt.core.dom.CompilationUnit;
+import org.eclipse.jdt.core.dom.StructuralPropertyDescriptor;
 import org.eclipse.jdt.core.dom.rewrite.ASTRewrite;
 import org.eclipse.jface.text.Document;
 import org.eclipse.text.edits.MultiTextEdit;
 import org.eclipse.text.edits.TextEdit;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.StringJoiner;
 
 public final class RewriteContext extends SourceContext {
@@ -35,9 +46,10 @@ public final class RewriteContext extends SourceContext {
     private TextEdit edit;
     private ASTRewrite rewrite;
     private ImportRewrite importRewrite;
+    private List<Map<String, String>> dependencies;
 
-    RewriteContext(Mercury mercury, Path sourceFile, CompilationUnit compilationUnit, String primaryType) {
-        super(mercury, sourceFile, compilationUnit, primaryType);
+    RewriteContext(MercuryRun run, Path sourceFile, CompilationUnit compilationUnit, String primaryType) {
+        super(run, sourceFile, compilationUnit, primaryType);
     }
 
     public void setPackageName(String packageName) {
@@ -74,6 +86,41 @@ public void addEdit(TextEdit edit) {
         this.edit.addChild(Objects.requireNonNull(edit, "edit"));
     }
 
+    /**
+     * Returns whether dependencies are recorded for this file. Processors
+     * may use this to avoid computing keys that would be discarded.
+     *
+     * @return Whether {@link #addDependency(String, String)} has an effect
+     * @see SourceProcessor#FLAG_INCREMENTAL
+     */
+    public boolean isRecordingDependencies() {
+        return getRun().index != null || getRun().checkpoint != null;
+    }
+
+    /**
+     * Records a value the output of the current processor depends on. The
+     * file is only processed again on the next incremental run if
+     * {@link SourceProcessor#resolveDependency(String)} returns a different
+     * value for the key.
+     *
+     * @param key The key of the dependency
+     * @param value The current value of the dependency
+     * @see SourceProcessor#FLAG_INCREMENTAL
+     */
+    public void addDependency(String key, @Nullable String value) {
+        if (!isRecordingDependencies()) {
+            return;
+        }
+
+        if (this.dependencies == null) {
+            this.dependencies = new ArrayList<>();
+        }
+        while (this.dependencies.size() <= this.processorIndex) {
+            this.dependencies.add(new HashMap<>());
+        }
+        this.dependencies.get(this.processorIndex).put(key, value);
+    }
+
     private TextEdit rewrite() throws CoreException, IOException {
         if (this.rewrite == null && this.importRewrite == null && this.edit == null) {
             return null;
@@ -81,16 +128,97 @@ private TextEdit rewrite() throws CoreException, IOException {
 
         TextEdit edit = null;
         if (this.rewrite != null) {
+            long start = System.nanoTime();
             edit = this.rewrite.rewriteAST(loadDocument(), null);
+            this.rewriteNanos = System.nanoTime() - start;
         }
 
         if (this.importRewrite != null) {
-            edit = combineEdit(edit, this.importRewrite.rewriteImports(loadDocument(), null));
+            long start = System.nanoTime();
+            edit = combineEdit(edit, this.importRewrite.rewriteImports(loadDocument(), getProgressMonitor()));
+            this.importRewriteNanos = System.nanoTime() - start;
         }
 
         return combineEdit(edit, this.edit);
     }
 
+    /**
+     * Counts the edits without computing them. Each changed property of
+     * the AST, each inserted, removed or replaced element of a list of
+     * nodes, each added or removed import and each text edit counts as
+     * one edit.
+     */
+    private int countEdits() {
+        int edits = 0;
+        if (this.rewrite != null) {
+            ASTRewrite rewrite = this.rewrite;
+            int[] changed = new int[1];
+            getCompilationUnit().accept(new ASTVisitor(true) {
+                @Override
+                public void preVisit(ASTNode node) {
+                    for (Object property : node.structuralPropertiesForType()) {
+                        StructuralPropertyDescriptor descriptor = (StructuralPropertyDescriptor) property;
+                        Object value = rewrite.get(node, descriptor);
+                        Object original = node.getStructuralProperty(descriptor);
+                        if (descriptor.isChildListProperty()) {
+                            // Unchanged lists are returned as they are
+                            if (value != original) {
+                                changed[0] += countListEdits((List<?>) original, (List<?>) value);
+                            }
+                        } else if (!Objects.equals(value, original)) {
+                            changed[0]++;
+                        }
+                    }
+                }
+            });
+            edits += changed[0];
+        }
+
+        if (this.importRewrite != null) {
+            edits += this.importRewrite.getAddedImports().length + this.importRewrite.getRemovedImports().length
+                    + this.importRewrite.getAddedStaticImports().length + this.importRewrite.getRemovedStaticImports().length;
+        }
+
+        if (this.edit != null) {
+            edits += countTextEdits(this.edit);
+        }
+        return edits;
+    }
+
+    private static int countListEdits(List<?> original, List<?> rewritten) {
+        Set<Object> before = Collections.newSetFromMap(new IdentityHashMap<>());
+        before.addAll(original);
+        Set<Object> after = Collections.newSetFromMap(new IdentityHashMap<>());
+        after.addAll(rewritten);
+
+        int inserted = 0;
+        for (Object node : rewritten) {
+            if (!before.contains(node)) {
+                inserted++;
+            }
+        }
+        int removed = 0;
+        for (Object node : original) {
+            if (!after.contains(node)) {
+                removed++;
+            }
+        }
+        // A replaced element is both removed and inserted
+        return Math.max(inserted, removed);
+    }
+
+    private static int countTextEdits(TextEdit edit) {
+        if (!edit.hasChildren()) {
+            return edit instanceof MultiTextEdit ? 0 : 1;
+        }
+
+        int count = 0;
+        for (TextEdit child : edit.getChildren()) {
+            count += countTextEdits(child);
+        }
+        return count;
+    }
+
     private static TextEdit combineEdit(TextEdit before, TextEdit edit) {
         if (before == null) {
             return edit;
@@ -106,41 +234,145 @@ private static TextEdit combineEdit(TextEdit before, TextEdit edit) {
         return before;
     }
 
+    private String getOutputPath(String separator) {
+        String path = this.primaryType + JAVA_EXTENSION;
+        if (this.packageName.isEmpty()) {
+            return path;
+        }
+
+        StringJoiner joiner = new StringJoiner(separator);
+        for (String part : this.packageName.split("\\.")) {
+            joiner.add(part);
+        }
+        joiner.add(path);
+        return joiner.toString();
+    }
+
     @Override
     void process(List<SourceProcessor> processors) throws Exception {
         super.process(processors);
 
-        Path outputDir = getMercury().getOutputDir();
+        Map<Path, Integer> changes = getRun().changes;
+        if (changes != null) {
+            int edits = countEdits();
+            if (edits > 0) {
+                changes.put(getSourceFile(), edits);
+            }
+            reportTimings();
+            return;
+        }
+
+        // The edit is computed on the parser thread, since it may still
+        // need bindings that JDT discards once the file was accepted
+        TextEdit edit = rewrite();
+        Document document = edit != null ? loadDocument() : null;
 
-        String path = this.primaryType + JAVA_EXTENSION;
-        if (!this.packageName.isEmpty()) {
-            StringJoiner joiner = new StringJoiner(outputDir.getFileSystem().getSeparator());
+        String outputPath = getOutputPath("/");
+        if (getRun().getOutputDir() != null) {
+            getRun().outputs.put(getRun().relativize(getSourceFile()), outputPath);
+        }
 
-            for (String part : this.packageName.split("\\.")) {
-                joiner.add(part);
+        List<Map<String, String>> dependencies = this.dependencies != null ? this.dependencies : new ArrayList<>();
+        while (dependencies.size() < processors.size()) {
+            dependencies.add(new HashMap<>());
+        }
+        IncrementalIndex index = getRun().index;
+        IncrementalIndex.Entry entry = null;
+        if (index != null || getRun().checkpoint != null) {
+            // Bindings are only available until the file was accepted
+            Set<String> types = new HashSet<>();
+            Set<String> sourceDependencies = new HashSet<>();
+            IncrementalIndex.collectTypes(getCompilationUnit(), types, sourceDependencies);
+            entry = IncrementalIndex.createEntry(getSourceFile(), outputPath, dependencies, types, sourceDependencies);
+            if (index != null) {
+                index.put(getRun().relativize(getSourceFile()), entry);
             }
-            joiner.add(path);
+        }
 
-            path = joiner.toString();
+        // The queued output only refers to what is needed to write it, not
+        // to this context, so the AST can be collected while it is queued
+        PendingWrite write = new PendingWrite(getRun(), getSourceFile(), outputPath, document, edit, entry,
+                createTimings());
+        OutputQueue output = getRun().output;
+        if (output != null) {
+            output.submit(getSourceFile().toString(), write::run);
+        } else {
+            write.run();
         }
+    }
 
-        Path outputFile = outputDir.resolve(path);
-        Files.createDirectories(outputFile.getParent());
+    /**
+     * The output of a file, waiting to be written.
+     *
+     * @param document The original source, if the file was changed
+     * @param edit The changes of the file, if any
+     * @param entry The incremental state of the file, if it is recorded
+     * @param timings The time spent on the file so far, if slow files are reported
+     */
+    private record PendingWrite(MercuryRun run, Path sourceFile, String outputPath, @Nullable Document document,
+            @Nullable TextEdit edit, @Nullable IncrementalIndex.Entry entry, @Nullable FileTimings timings) {
 
-        TextEdit edit = rewrite();
-        if (edit == null) {
-            // Copy original source file
-            Files.copy(getSourceFile(), outputFile, StandardCopyOption.REPLACE_EXISTING);
-            return;
+        void run() throws Exception {
+            try {
+                long start = System.nanoTime();
+                write();
+                if (this.timings != null) {
+                    SourceContext.reportTimings(this.run.getMercury(), new FileTimings(this.sourceFile,
+                            this.timings.size(), this.timings.parse(), this.timings.processors(), this.timings.rewrite(),
+                            this.timings.importRewrite(), Duration.ofNanos(System.nanoTime() - start)));
+                }
+
+                CheckpointJournal checkpoint = this.run.checkpoint;
+                if (checkpoint != null && this.entry != null) {
+                    checkpoint.complete(this.run.relativize(this.sourceFile), this.sourceFile, this.entry);
+                }
+            } catch (Exception e) {
+                if (!this.run.getMercury().isContinueOnError()) {
+                    throw e;
+                }
+                this.run.fail(this.sourceFile, SourceError.Stage.WRITE, null, e);
+            }
         }
 
-        // Save the rewritten source file
-        Document document = loadDocument();
-        edit.apply(document, TextEdit.NONE);
+        private void write() throws Exception {
+            if (this.run.patches != null) {
+                writePatch(this.run.patches);
+                return;
+            }
+
+            Path outputDir = this.run.getOutputDir();
+            Path outputFile = outputDir.resolve(this.outputPath.replace("/", outputDir.getFileSystem().getSeparator()));
+            Files.createDirectories(outputFile.getParent());
+
+            if (this.edit == null) {
+                // Copy original source file
+                Files.copy(this.sourceFile, outputFile, StandardCopyOption.REPLACE_EXISTING);
+                return;
+            }
+
+            // Save the rewritten source file
+            this.edit.apply(this.document, TextEdit.NONE);
 
-        try (OutputStreamWriter writer = new OutputStreamWriter(Files.newOutputStream(outputFile), getMercury().getEncoding())) {
-            writer.write(document.get());
+            OutputEncoder.write(this.document, outputFile, this.run.getMercury().getEncoding());
         }
+
+        private void writePatch(Map<String, String> patches) throws Exception {
+            if (this.edit == null) {
+                // Unchanged files are left out of the patch
+                return;
+            }
+
+            String original = this.document.get();
+            this.edit.apply(this.document, TextEdit.NONE);
+
+            String oldPath = this.run.relativize(this.sourceFile);
+            StringBuilder patch = new StringBuilder();
+            UnifiedDiff.write(patch, oldPath, this.outputPath, original, this.document.get());
+            if (patch.length() > 0) {
+                patches.put(oldPath, patch.toString());
+            }
+        }
+
     }
 
 }
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2018 Cadix Development (https://www.cadixdev.org)
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which accompanies this distribution,
+ * and is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.cadixdev.mercury;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitOption;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Splits a rewrite into shards that are rewritten by separate worker
+ * processes. Each worker only processes the files of its shard, but has
+ * the full source tree on the source path, and writes its output into the
+ * shared output directory. The logs and errors of the workers are merged
+ * in a fixed order once all of them finished.
+ */
+final class ShardCoordinator {
+
+    static final String SHARD_OPTION = "--shard=";
+    private static final String ERRORS_EXTENSION = ".errors";
+
+    private ShardCoordinator() {
+    }
+
+    /**
+     * Splits the source files into shards of about the same size, starting
+     * with the largest files.
+     *
+     * @param sourceDir The directory containing the sources
+     * @param shards The number of shards, at least 1
+     * @return The source files of each shard
+     * @throws IOException If the source directory could not be read
+     */
+    static List<List<String>> split(Path sourceDir, int shards) throws IOException {
+        if (shards < 1) {
+            throw new IllegalArgumentException("Number of shards must be at least 1: " + shards);
+        }
+
+        List<Path> files;
+        try (Stream<Path> paths = Files.walk(sourceDir, FileVisitOption.FOLLOW_LINKS)) {
+            files = paths.filter(p -> p.getFileName() != null && p.getFileName().toString().endsWith(Mercury.JAVA_EXTENSION))
+                    .sorted()
+                    .toList();
+        }
+
+        List<Long> sizes = new ArrayList<>(files.size());
+        for (Path file : files) {
+            sizes.add(Files.size(file));
+        }
+
+        List<Integer> order = new ArrayList<>(files.size());
+        for (int i = 0; i < files.size(); i++) {
+            order.add(i);
+        }
+        // Stable, so files of the same size keep their order
+        order.sort(Comparator.comparing(sizes::get, Comparator.reverseOrder()));
+
+        List<List<String>> result = new ArrayList<>(shards);
+        long[] totals = new long[shards];
+        PriorityQueue<Integer> smallest = new PriorityQueue<>(shards,
+                Comparator.<Integer>comparingLong(i -> totals[i]).thenComparingInt(i -> i));
+        for (int i = 0; i < shards; i++) {
+            result.add(new ArrayList<>());
+            smallest.add(i);
+        }
+
+        for (int file : order) {
+            int shard = smallest.poll();
+            result.get(shard).add(files.get(file).toString());
+            totals[shard] += sizes.get(file);
+            smallest.add(shard);
+        }
+        return result;
+    }
+
+    /**
+     * Rewrites the sources using one worker process per shard.
+     *
+     * @param args The arguments of the coordinator, passed on to the workers
+     * @param sourceDir The directory containing the sources
+     * @param shards The number of shards, at least 1
+     * @param workerHeap The maximum heap size of each worker, e.g. {@code 4g}
+     * @param log Receives the merged log lines of all workers, even if some failed
+     * @return The merged errors of all workers
+     * @throws Exception If a worker could not be started or failed
+     */
+    static List<String> run(String[] args, Path sourceDir, int shards, @Nullable String workerHeap, Consumer<String> log)
+            throws Exception {
+        Path tempDir = Files.createTempDirectory("mercury-shards");
+        try {
+            String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+            List<List<String>> split = split(sourceDir, shards);
+
+            List<Process> workers = new ArrayList<>(shards);
+            for (int i = 0; i < shards; i++) {
+                Path shardFile = tempDir.resolve("shard-" + i);
+                Files.write(shardFile, split.get(i), StandardCharsets.UTF_8);
+
+                List<String> command = new ArrayList<>();
+                command.add(java);
+                if (workerHeap != null) {
+                    command.add("-Xmx" + workerHeap);
+                }
+                command.add("-cp");
+                command.add(System.getProperty("java.class.path"));
+                command.add(Main.class.getName());
+                command.add(SHARD_OPTION + shardFile);
+                for (String arg : args) {
+                    if (!arg.startsWith("--shards=") && !arg.startsWith("--worker-heap=")) {
+                        command.add(arg);
+                    }
+                }
+
+                File log = tempDir.resolve("shard-" + i + ".log").toFile();
+                workers.add(new ProcessBuilder(command)
+                        .redirectErrorStream(true)
+                        .redirectOutput(log)
+                        .start());
+            }
+
+            List<Integer> failed = new ArrayList<>();
+            for (int i = 0; i < shards; i++) {
+                if (workers.get(i).waitFor() != 0) {
+                    failed.add(i);
+                }
+            }
+
+            // Merge in shard order, independent of which worker finished first
+            Set<String> errors = new TreeSet<>();
+            for (int i = 0; i < shards; i++) {
+                log.accept("Shard " + i + " (" + split.get(i).size() + " file(s)):");
+                for (String line : Files.readAllLines(tempDir.resolve("shard-" + i + ".log"), StandardCharsets.UTF_8)) {
+                    log.accept("  " + line);
+                }
+
+                Path errorFile = tempDir.resolve("shard-" + i + ERRORS_EXTENSION);
+                if (Files.isRegularFile(errorFile)) {
+                    errors.addAll(Files.readAllLines(errorFile, StandardCharsets.UTF_8));
+                }
+            }
+
+            if (!failed.isEmpty()) {
+                throw new IllegalStateException("Shards failed: " + failed);
+            }
+            return new ArrayList<>(errors);
+        } finally {
+            try (Stream<Path> files = Files.walk(tempDir)) {
+                for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Rewrites the files of a single shard, as worker process.
+     *
+     * @param mercury The configured instance
+     * @param shardFile The file listing the source files of the shard
+     * @param sourceDir The directory containing the sources
+     * @param outputDir The directory to write the rewritten sources to
+     * @throws Exception If rewriting the sources failed
+     */
+    static void runWorker(Mercury mercury, Path shardFile, Path sourceDir, Path outputDir) throws Exception {
+        MercuryRun run = new MercuryRun(mercury, sourceDir, outputDir, null);
+        run.include = new LinkedHashSet<>(Files.readAllLines(shardFile, StandardCharsets.UTF_8));
+
+        List<String> errors = new ArrayList<>();
+        if (!run.include.isEmpty()) {
+            for (SourceError error : mercury.run(run)) {
+                // One line per error, the coordinator merges them
+                errors.add(error.toString().replace('\n', ' ').replace('\r', ' '));
+            }
+        }
+        Files.write(Paths.get(shardFile + ERRORS_EXTENSION), errors, StandardCharsets.UTF_8);
+    }
+
+}
@@ -10,17 +10,24 @@
 
 package org.cadixdev.mercury;
 
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
 import org.eclipse.jdt.core.dom.CompilationUnit;
 import org.eclipse.jdt.core.dom.PackageDeclaration;
 import org.eclipse.jface.text.Document;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class SourceContext {
 
+    private final MercuryRun run;
     private final Mercury mercury;
 
     private final Path sourceFile;
@@ -30,9 +37,20 @@ public class SourceContext {
     String primaryType;
 
     private Document document;
-
-    SourceContext(Mercury mercury, Path sourceFile, CompilationUnit compilationUnit, String primaryType) {
-        this.mercury = mercury;
+    int processorIndex;
+    @Nullable
+    FileWatchdog.Monitor monitor;
+
+    // The time spent in each phase, if slow files are reported
+    boolean timed;
+    long parseNanos;
+    long[] processorNanos;
+    long rewriteNanos;
+    long importRewriteNanos;
+
+    SourceContext(MercuryRun run, Path sourceFile, CompilationUnit compilationUnit, String primaryType) {
+        this.run = run;
+        this.mercury = run.getMercury();
         this.sourceFile = sourceFile;
         this.compilationUnit = compilationUnit;
 
@@ -45,6 +63,10 @@ public final Mercury getMercury() {
         return this.mercury;
     }
 
+    public final MercuryRun getRun() {
+        return this.run;
+    }
+
     public final Path getSourceFile() {
         return this.sourceFile;
     }
@@ -69,6 +91,30 @@ public final String getQualifiedPrimaryType() {
         }
     }
 
+    /**
+     * Returns the monitor of the file's {@link Mercury#getFileTimeout() time budget},
+     * to pass on to long-running operations that accept one.
+     *
+     * @return The monitor, or {@code null} if files have no time budget
+     */
+    @Nullable
+    public final IProgressMonitor getProgressMonitor() {
+        return this.monitor;
+    }
+
+    /**
+     * Stops processing the file if it exceeded its
+     * {@link Mercury#getFileTimeout() time budget}. Processors that may take
+     * long should call this regularly, e.g. for each visited node.
+     *
+     * @throws OperationCanceledException If the file exceeded its time budget
+     */
+    public final void checkCanceled() {
+        if (this.monitor != null && this.monitor.isCanceled()) {
+            throw new OperationCanceledException();
+        }
+    }
+
     public final Document loadDocument() throws IOException {
         if (this.document == null) {
             this.document = new Document(new String(Files.readAllBytes(this.sourceFile), this.mercury.getEncoding()));
@@ -77,8 +123,61 @@ public final Document loadDocument() throws IOException {
     }
 
     void process(List<SourceProcessor> processors) throws Exception {
-        for (SourceProcessor processor : processors) {
-            processor.process(this);
+        if (this.timed) {
+            this.processorNanos = new long[processors.size()];
+        }
+
+        for (int i = 0; i < processors.size(); i++) {
+            this.processorIndex = i;
+            long start = this.timed ? System.nanoTime() : 0;
+            processors.get(i).process(this);
+            if (this.timed) {
+                this.processorNanos[i] = System.nanoTime() - start;
+            }
+        }
+        this.processorIndex = -1;
+    }
+
+    /**
+     * Reports the file if it took longer than the
+     * {@link Mercury#getSlowFileThreshold() threshold}.
+     */
+    void reportTimings() throws IOException {
+        FileTimings timings = createTimings();
+        if (timings != null) {
+            reportTimings(this.mercury, timings);
+        }
+    }
+
+    /**
+     * Collects the time spent on the file so far. The output is written
+     * later, so the time spent writing it is left out.
+     *
+     * @return The timings, or {@code null} if slow files are not reported
+     */
+    @Nullable
+    FileTimings createTimings() throws IOException {
+        if (!this.timed || this.mercury.getSlowFileThreshold() == null) {
+            return null;
+        }
+
+        Map<String, Duration> processors = new LinkedHashMap<>();
+        if (this.processorNanos != null) {
+            for (int i = 0; i < this.processorNanos.length; i++) {
+                processors.merge(this.mercury.getProcessors().get(i).getClass().getName(),
+                        Duration.ofNanos(this.processorNanos[i]), Duration::plus);
+            }
+        }
+
+        return new FileTimings(this.sourceFile, Files.size(this.sourceFile),
+                Duration.ofNanos(this.parseNanos), processors, Duration.ofNanos(this.rewriteNanos),
+                Duration.ofNanos(this.importRewriteNanos), Duration.ZERO);
+    }
+
+    static void reportTimings(Mercury mercury, FileTimings timings) {
+        Duration threshold = mercury.getSlowFileThreshold();
+        if (threshold != null && timings.total().compareTo(threshold) > 0) {
+            mercury.getSlowFileHandler().accept(timings);
         }
     }
 
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2018 Cadix Development (https://www.cadixdev.org)
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which accompanies this distribution,
+ * and is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.cadixdev.mercury;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.file.Path;
+import java.util.Locale;
+
+/**
+ * A source file that could not be processed in a run with
+ * {@link Mercury#isContinueOnError() continue on error} enabled, or that
+ * exceeded its {@link Mercury#getFileTimeout() time budget}.
+ *
+ * @param sourceFile The source file
+ * @param stage The stage that failed
+ * @param processor The class name of the processor that failed, if any
+ * @param cause The failure
+ */
+public record SourceError(Path sourceFile, Stage stage, @Nullable String processor, Throwable cause) {
+
+    public enum Stage {
+        /**
+         * The compiler failed to parse or resolve the file.
+         */
+        PARSE,
+        /**
+         * A processor failed, or the changes of the processors could not be applied.
+         */
+        PROCESS,
+        /**
+         * The output could not be written.
+         */
+        WRITE,
+        /**
+         * The file exceeded its {@link Mercury#getFileTimeout() time budget}.
+         */
+        TIMEOUT
+    }
+
+    @Override
+    public String toString() {
+        String prefix = this.stage == Stage.TIMEOUT ? "Timed out on " : "Failed to " + this.stage.name().toLowerCase(Locale.ROOT) + ' ';
+        return prefix + this.sourceFile
+                + (this.processor != null ? " (" + this.processor + ')' : "") + ": " + this.cause;
+    }
+
+}
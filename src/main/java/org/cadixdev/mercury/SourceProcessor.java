@@ -10,10 +10,66 @@
 
 package org.cadixdev.mercury;
 
+import org.jetbrains.annotations.Nullable;
+
 public interface SourceProcessor {
 
     int FLAG_RESOLVE_BINDINGS = 1 << 0;
 
+    /**
+     * Declares that the processor only needs the parser features it requests
+     * using the {@code FLAG_NEEDS_*} flags. Processors without this flag are
+     * assumed to need all of them.
+     */
+    int FLAG_DECLARES_PARSER_FEATURES = 1 << 1;
+
+    /**
+     * Doc comments are parsed into {@link org.eclipse.jdt.core.dom.Javadoc} nodes.
+     */
+    int FLAG_NEEDS_JAVADOC = 1 << 2;
+
+    /**
+     * Method bodies are parsed. Without this flag, only signatures are available.
+     */
+    int FLAG_NEEDS_METHOD_BODIES = 1 << 3;
+
+    /**
+     * Bindings are recovered for references that cannot be resolved on the
+     * classpath. Only has an effect together with {@link #FLAG_RESOLVE_BINDINGS}.
+     */
+    int FLAG_NEEDS_BINDINGS_RECOVERY = 1 << 4;
+
+    /**
+     * Malformed statements are recovered instead of being dropped from the AST.
+     * Must be requested explicitly, it is not part of {@link #PARSER_FEATURES}.
+     */
+    int FLAG_NEEDS_STATEMENTS_RECOVERY = 1 << 5;
+
+    /**
+     * Declares that {@link #process(SourceContext)} may be called for different
+     * files on different threads at the same time. Processors without this
+     * flag are only called by one thread at a time.
+     *
+     * @see Mercury#setParallelism(int)
+     */
+    int FLAG_THREAD_SAFE = 1 << 6;
+
+    /**
+     * Declares that the result of the processor for a file only depends on
+     * the source file itself and the dependencies it recorded using
+     * {@link RewriteContext#addDependency(String, String)}, which can be
+     * resolved again using {@link #resolveDependency(String)}.
+     *
+     * @see Mercury#setIncrementalIndex(java.nio.file.Path)
+     */
+    int FLAG_INCREMENTAL = 1 << 7;
+
+    /**
+     * The parser features assumed for processors without {@link #FLAG_DECLARES_PARSER_FEATURES},
+     * the features that were always enabled before processors could declare them.
+     */
+    int PARSER_FEATURES = FLAG_NEEDS_JAVADOC | FLAG_NEEDS_METHOD_BODIES | FLAG_NEEDS_BINDINGS_RECOVERY;
+
     default int getFlags() {
         return 0;
     }
@@ -21,6 +77,30 @@ default int getFlags() {
     default void initialize(Mercury mercury) throws Exception {
     }
 
+    /**
+     * Resolves a dependency recorded by this processor in a previous run
+     * again, see {@link #FLAG_INCREMENTAL}.
+     *
+     * @param key The key of the dependency
+     * @return The current value of the dependency
+     */
+    @Nullable
+    default String resolveDependency(String key) {
+        throw new UnsupportedOperationException("Processor does not support incremental runs: " + getClass().getName());
+    }
+
+    /**
+     * Describes the options of the processor that change its output, e.g.
+     * those passed to its constructor. Output of an incremental run is only
+     * reused if it was produced with the same configuration.
+     *
+     * @return The configuration of the processor
+     * @see #FLAG_INCREMENTAL
+     */
+    default String getConfiguration() {
+        return "";
+    }
+
     void process(SourceContext context) throws Exception;
 
     default void finish(Mercury mercury) throws Exception {
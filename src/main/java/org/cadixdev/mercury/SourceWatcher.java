@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2018 Cadix Development (https://www.cadixdev.org)
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which accompanies this distribution,
+ * and is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.cadixdev.mercury;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Watches a source directory and rewrites changed files, together with the
+ * files that may refer to the types they declare, into the output directory.
+ */
+public final class SourceWatcher {
+
+    /**
+     * Receives the results of the rewrites triggered by changes.
+     */
+    public interface Listener {
+
+        /**
+         * Called after the given source files were rewritten or their
+         * output was removed.
+         *
+         * @param sourceFiles The changed and dependent source files
+         */
+        default void rewritten(Set<Path> sourceFiles) {
+        }
+
+        /**
+         * Called if rewriting the given source files failed. The watcher
+         * keeps running and tries again on the next change.
+         *
+         * @param sourceFiles The changed and dependent source files
+         * @param e The failure
+         */
+        default void failed(Set<Path> sourceFiles, Exception e) {
+        }
+
+    }
+
+    private final Mercury mercury;
+    private final Path sourceDir;
+    private final Path outputDir;
+    private final Duration debounce;
+    private final Listener listener;
+
+    // The output path of each source file, relative to the output directory
+    private final Map<String, String> outputs = new HashMap<>();
+    // The names each source file may refer to
+    private final Map<Path, Set<String>> names = new HashMap<>();
+    private final Map<WatchKey, Path> directories = new HashMap<>();
+
+    SourceWatcher(Mercury mercury, Path sourceDir, Path outputDir, Duration debounce, Listener listener) {
+        this.mercury = mercury;
+        this.sourceDir = sourceDir;
+        this.outputDir = outputDir;
+        this.debounce = debounce;
+        this.listener = listener;
+    }
+
+    void run() throws Exception {
+        try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+            // Register first, so no change during the initial rewrite is missed
+            register(watchService, this.sourceDir);
+
+            MercuryRun run = new MercuryRun(this.mercury, this.sourceDir, this.outputDir, null);
+            this.mercury.run(run).forEach(this.mercury.getErrorHandler());
+            this.outputs.putAll(run.outputs);
+            indexNames(this.sourceDir);
+
+            while (!Thread.currentThread().isInterrupted()) {
+                Set<Path> changed = new LinkedHashSet<>();
+                collect(watchService, watchService.take(), changed);
+
+                // Wait until no more changes arrive, editors often write files in multiple steps
+                WatchKey key;
+                while ((key = watchService.poll(this.debounce.toMillis(), TimeUnit.MILLISECONDS)) != null) {
+                    collect(watchService, key, changed);
+                }
+
+                if (!changed.isEmpty()) {
+                    rewrite(changed);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void register(WatchService watchService, Path dir) throws IOException {
+        try (Stream<Path> dirs = Files.walk(dir, FileVisitOption.FOLLOW_LINKS)) {
+            for (Path subDir : (Iterable<Path>) dirs.filter(Files::isDirectory)::iterator) {
+                this.directories.put(subDir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE), subDir);
+            }
+        }
+    }
+
+    private void collect(WatchService watchService, WatchKey key, Set<Path> changed) throws IOException {
+        Path dir = this.directories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (dir == null || event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // Events were lost, check all files
+                try (Stream<Path> files = Files.walk(this.sourceDir, FileVisitOption.FOLLOW_LINKS)) {
+                    files.filter(SourceWatcher::isSourceFile).forEach(changed::add);
+                }
+                changed.addAll(this.names.keySet());
+                continue;
+            }
+
+            Path file = dir.resolve((Path) event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(file)) {
+                register(watchService, file);
+                try (Stream<Path> files = Files.walk(file, FileVisitOption.FOLLOW_LINKS)) {
+                    files.filter(SourceWatcher::isSourceFile).forEach(changed::add);
+                }
+            } else if (file.getFileName().toString().endsWith(Mercury.JAVA_EXTENSION)) {
+                changed.add(file);
+            } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                // Only the directory itself is reported when it is deleted
+                for (Path sourceFile : this.names.keySet()) {
+                    if (sourceFile.startsWith(file)) {
+                        changed.add(sourceFile);
+                    }
+                }
+            }
+        }
+
+        if (!key.reset()) {
+            this.directories.remove(key);
+        }
+    }
+
+    private void rewrite(Set<Path> changed) {
+        Set<Path> affected = new LinkedHashSet<>(changed);
+        try {
+            Set<String> typeNames = new LinkedHashSet<>();
+            for (Path file : changed) {
+                // Assume the primary type matches the file name and directory
+                String fileName = file.getFileName().toString();
+                String sourcePath = MercuryRun.relativize(this.sourceDir, file);
+                typeNames.add(fileName.substring(0, fileName.length() - Mercury.JAVA_EXTENSION.length()));
+                typeNames.add(sourcePath.substring(0, sourcePath.length() - Mercury.JAVA_EXTENSION.length()).replace('/', '.'));
+
+                if (Files.isRegularFile(file)) {
+                    this.names.put(file, collectNames(file));
+                } else {
+                    this.names.remove(file);
+                    String output = this.outputs.remove(sourcePath);
+                    if (output != null) {
+                        Files.deleteIfExists(this.outputDir.resolve(output));
+                    }
+                }
+            }
+
+            // Files referring to a changed type may resolve differently now
+            for (Map.Entry<Path, Set<String>> entry : this.names.entrySet()) {
+                for (String typeName : typeNames) {
+                    if (entry.getValue().contains(typeName)) {
+                        affected.add(entry.getKey());
+                        break;
+                    }
+                }
+            }
+
+            MercuryRun run = new MercuryRun(this.mercury, this.sourceDir, this.outputDir, null);
+            run.include = new LinkedHashSet<>();
+            for (Path file : affected) {
+                if (Files.isRegularFile(file)) {
+                    run.include.add(file.toString());
+                }
+            }
+
+            if (!run.include.isEmpty()) {
+                this.mercury.run(run).forEach(this.mercury.getErrorHandler());
+            }
+
+            for (Map.Entry<String, String> output : run.outputs.entrySet()) {
+                String previous = this.outputs.put(output.getKey(), output.getValue());
+                if (previous != null && !previous.equals(output.getValue())) {
+                    // The primary type was renamed
+                    Files.deleteIfExists(this.outputDir.resolve(previous));
+                }
+            }
+
+            this.listener.rewritten(affected);
+        } catch (Exception e) {
+            this.listener.failed(affected, e);
+        }
+    }
+
+    private void indexNames(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir, FileVisitOption.FOLLOW_LINKS)) {
+            for (Path file : (Iterable<Path>) files.filter(SourceWatcher::isSourceFile)::iterator) {
+                this.names.put(file, collectNames(file));
+            }
+        }
+    }
+
+    private Set<String> collectNames(Path file) throws IOException {
+        return ClassPathIndex.collectNames(new String[]{file.toString()}, this.mercury.getEncoding());
+    }
+
+    private static boolean isSourceFile(Path file) {
+        return file.getFileName() != null && file.getFileName().toString().endsWith(Mercury.JAVA_EXTENSION)
+                && Files.isRegularFile(file);
+    }
+
+}
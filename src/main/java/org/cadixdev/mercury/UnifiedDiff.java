@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2018 Cadix Development (https://www.cadixdev.org)
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which accompanies this distribution,
+ * and is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.cadixdev.mercury;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes line based unified diffs between the original and rewritten
+ * contents of a source file.
+ */
+final class UnifiedDiff {
+
+    private static final int CONTEXT = 3;
+    private static final String NO_NEWLINE = "\\ No newline at end of file\n";
+
+    private UnifiedDiff() {
+    }
+
+    static void write(Appendable out, String oldPath, String newPath, String oldText, String newText) throws IOException {
+        List<String> a = splitLines(oldText);
+        List<String> b = splitLines(newText);
+
+        // Rewrites usually only touch a few lines, so trim the common
+        // prefix and suffix before running the actual diff
+        int prefix = 0;
+        while (prefix < a.size() && prefix < b.size() && a.get(prefix).equals(b.get(prefix))) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < a.size() - prefix && suffix < b.size() - prefix
+                && a.get(a.size() - 1 - suffix).equals(b.get(b.size() - 1 - suffix))) {
+            suffix++;
+        }
+
+        List<int[]> changes = diff(a, b, prefix, a.size() - suffix, prefix, b.size() - suffix);
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        out.append("--- a/").append(oldPath).append('\n');
+        out.append("+++ b/").append(newPath).append('\n');
+
+        int i = 0;
+        while (i < changes.size()) {
+            // Group changes which share their context lines into a single hunk
+            int j = i;
+            while (j + 1 < changes.size() && changes.get(j + 1)[0] - changes.get(j)[1] <= 2 * CONTEXT) {
+                j++;
+            }
+
+            int[] first = changes.get(i);
+            int[] last = changes.get(j);
+            int oldStart = Math.max(0, first[0] - CONTEXT);
+            int oldEnd = Math.min(a.size(), last[1] + CONTEXT);
+            int newStart = first[2] - (first[0] - oldStart);
+            int newEnd = last[3] + (oldEnd - last[1]);
+
+            out.append("@@ -").append(range(oldStart, oldEnd - oldStart))
+                    .append(" +").append(range(newStart, newEnd - newStart)).append(" @@\n");
+
+            int line = oldStart;
+            for (int k = i; k <= j; k++) {
+                int[] change = changes.get(k);
+                for (; line < change[0]; line++) {
+                    writeLine(out, ' ', a.get(line));
+                }
+                for (int l = change[0]; l < change[1]; l++) {
+                    writeLine(out, '-', a.get(l));
+                }
+                for (int l = change[2]; l < change[3]; l++) {
+                    writeLine(out, '+', b.get(l));
+                }
+                line = change[1];
+            }
+            for (; line < oldEnd; line++) {
+                writeLine(out, ' ', a.get(line));
+            }
+
+            i = j + 1;
+        }
+    }
+
+    private static String range(int start, int length) {
+        // Empty ranges refer to the line before the change
+        return (length == 0 ? start : start + 1) + "," + length;
+    }
+
+    private static void writeLine(Appendable out, char prefix, String line) throws IOException {
+        out.append(prefix).append(line);
+        if (!line.endsWith("\n") && !line.endsWith("\r")) {
+            out.append('\n').append(NO_NEWLINE);
+        }
+    }
+
+    private static List<String> splitLines(String text) {
+        List<String> lines = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\n' || c == '\r') {
+                if (c == '\r' && i + 1 < text.length() && text.charAt(i + 1) == '\n') {
+                    i++;
+                }
+                lines.add(text.substring(start, i + 1));
+                start = i + 1;
+            }
+        }
+        if (start < text.length()) {
+            lines.add(text.substring(start));
+        }
+        return lines;
+    }
+
+    /**
+     * Computes the changed regions between the given line ranges using
+     * Myers' difference algorithm.
+     *
+     * @return A list of {@code {oldStart, oldEnd, newStart, newEnd}} changes
+     */
+    private static List<int[]> diff(List<String> a, List<String> b, int aStart, int aEnd, int bStart, int bEnd) {
+        int n = aEnd - aStart;
+        int m = bEnd - bStart;
+        boolean[] deleted = new boolean[n];
+        boolean[] inserted = new boolean[m];
+
+        if (n == 0 || m == 0) {
+            Arrays.fill(deleted, true);
+            Arrays.fill(inserted, true);
+        } else {
+            int max = n + m;
+            int offset = max + 1;
+            int[] v = new int[2 * max + 3];
+            List<int[]> trace = new ArrayList<>();
+
+            search:
+            for (int d = 0; d <= max; d++) {
+                // Only the diagonals reachable in this step need to be remembered
+                int[] snapshot = new int[2 * d + 3];
+                System.arraycopy(v, offset - d - 1, snapshot, 0, snapshot.length);
+                trace.add(snapshot);
+
+                for (int k = -d; k <= d; k += 2) {
+                    int x;
+                    if (k == -d || (k != d && v[offset + k - 1] < v[offset + k + 1])) {
+                        x = v[offset + k + 1];
+                    } else {
+                        x = v[offset + k - 1] + 1;
+                    }
+                    int y = x - k;
+                    while (x < n && y < m && a.get(aStart + x).equals(b.get(bStart + y))) {
+                        x++;
+                        y++;
+                    }
+                    v[offset + k] = x;
+                    if (x >= n && y >= m) {
+                        break search;
+                    }
+                }
+            }
+
+            int x = n;
+            int y = m;
+            for (int d = trace.size() - 1; d > 0; d--) {
+                int[] snapshot = trace.get(d);
+                int k = x - y;
+                int prevK;
+                if (k == -d || (k != d && snapshot[k - 1 + d + 1] < snapshot[k + 1 + d + 1])) {
+                    prevK = k + 1;
+                } else {
+                    prevK = k - 1;
+                }
+                int prevX = snapshot[prevK + d + 1];
+                int prevY = prevX - prevK;
+
+                while (x > prevX && y > prevY) {
+                    x--;
+                    y--;
+                }
+
+                if (x == prevX) {
+                    inserted[prevY] = true;
+                } else {
+                    deleted[prevX] = true;
+                }
+
+                x = prevX;
+                y = prevY;
+            }
+        }
+
+        List<int[]> changes = new ArrayList<>();
+        int i = 0;
+        int j = 0;
+        while (i < n || j < m) {
+            if ((i < n && deleted[i]) || (j < m && inserted[j])) {
+                int startI = i;
+                int startJ = j;
+                while (i < n && deleted[i]) {
+                    i++;
+                }
+                while (j < m && inserted[j]) {
+                    j++;
+                }
+                changes.add(new int[]{aStart + startI, aStart + i, bStart + startJ, bStart + j});
+            } else {
+                i++;
+                j++;
+            }
+        }
+        return changes;
+    }
+
+}
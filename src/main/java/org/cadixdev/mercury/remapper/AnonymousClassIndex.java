@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2018 Cadix Development (https://www.cadixdev.org)
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which accompanies this distribution,
+ * and is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.cadixdev.mercury.remapper;
+
+import net.fabricmc.tinyremapper.api.TrClass;
+import net.fabricmc.tinyremapper.api.TrEnvironment;
+import net.fabricmc.tinyremapper.api.TrField;
+import net.fabricmc.tinyremapper.api.TrMethod;
+import org.eclipse.jdt.core.dom.IMethodBinding;
+import org.eclipse.jdt.core.dom.ITypeBinding;
+import org.eclipse.jdt.core.dom.IVariableBinding;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Matches anonymous classes in the sources to the anonymous classes of the
+ * mappings by their structure, since decompilers and recompilation may
+ * number them differently.
+ *
+ * <p>The anonymous classes of each outer class are indexed by their
+ * superclass, interfaces and declared members once they are first needed.
+ * Anonymous classes with the same structure in the same outer class cannot
+ * be told apart and are left out of the index.</p>
+ */
+final class AnonymousClassIndex {
+
+    // Indexes may be shared between anonymous and local classes, so allow some gaps
+    private static final int MAX_MISSING_INDEXES = 8;
+
+    private static final int ACC_SYNTHETIC = 0x1000;
+
+    private final TrEnvironment environment;
+    private final Map<String, Map<Signature, String>> index = new ConcurrentHashMap<>();
+
+    AnonymousClassIndex(TrEnvironment environment) {
+        this.environment = environment;
+    }
+
+    /**
+     * Finds the anonymous class of the mappings matching the given binding.
+     *
+     * @param binding The binding of the anonymous class
+     * @return The internal name of the mapped class, or {@code null} if there is no unique match
+     */
+    @Nullable
+    String find(ITypeBinding binding) {
+        ITypeBinding outer = binding.getDeclaringClass();
+        if (outer == null) {
+            return null;
+        }
+
+        String outerName = outer.isAnonymous() ? find(outer) : null;
+        if (outerName == null) {
+            if (outer.getBinaryName() == null) {
+                return null;
+            }
+            outerName = outer.getBinaryName().replace('.', '/');
+        }
+
+        return this.index.computeIfAbsent(outerName, this::build).get(Signature.of(binding));
+    }
+
+    private Map<Signature, String> build(String outerName) {
+        Map<Signature, String> classes = new HashMap<>();
+        Set<Signature> ambiguous = new HashSet<>();
+
+        int missing = 0;
+        for (int i = 1; missing < MAX_MISSING_INDEXES; i++) {
+            TrClass trClass = this.environment.getClass(outerName + '$' + i);
+            if (trClass == null) {
+                missing++;
+                continue;
+            }
+
+            missing = 0;
+            Signature signature = Signature.of(trClass);
+            if (classes.putIfAbsent(signature, trClass.getName()) != null) {
+                ambiguous.add(signature);
+            }
+        }
+
+        for (Signature signature : ambiguous) {
+            classes.remove(signature);
+        }
+        return classes;
+    }
+
+    private record Signature(String superName, Set<String> interfaces, Set<String> methods, Set<String> fields) {
+
+        static Signature of(TrClass trClass) {
+            Set<String> methods = new HashSet<>();
+            for (TrMethod method : trClass.getMethods()) {
+                // Bridges, lambdas and accessors have no counterpart in the sources
+                if ((method.getAccess() & ACC_SYNTHETIC) == 0 && !method.getName().startsWith("<")) {
+                    methods.add(method.getName() + method.getDesc());
+                }
+            }
+
+            Set<String> fields = new HashSet<>();
+            for (TrField field : trClass.getFields()) {
+                // Outer instances and captured variables are synthetic
+                if ((field.getAccess() & ACC_SYNTHETIC) == 0) {
+                    fields.add(field.getName() + ':' + field.getDesc());
+                }
+            }
+
+            String superName = trClass.getSuperName() != null ? trClass.getSuperName() : "";
+            return new Signature(superName, new HashSet<>(trClass.getInterfaceNames()), methods, fields);
+        }
+
+        static Signature of(ITypeBinding binding) {
+            Set<String> methods = new HashSet<>();
+            for (IMethodBinding method : binding.getDeclaredMethods()) {
+                if (!method.isConstructor()) {
+                    methods.add(method.getName() + SimpleRemapperVisitor.methodDesc(method));
+                }
+            }
+
+            Set<String> fields = new HashSet<>();
+            for (IVariableBinding field : binding.getDeclaredFields()) {
+                fields.add(field.getName() + ':' + SimpleRemapperVisitor.convertType(field.getType()));
+            }
+
+            Set<String> interfaces = new HashSet<>();
+            for (ITypeBinding type : binding.getInterfaces()) {
+                interfaces.add(internalName(type));
+            }
+
+            ITypeBinding superclass = binding.getSuperclass();
+            return new Signature(superclass != null ? internalName(superclass) : "", interfaces, methods, fields);
+        }
+
+        private static String internalName(ITypeBinding type) {
+            String name = type.getErasure().getBinaryName();
+            return name != null ? name.replace('.', '/') : "";
+        }
+
+    }
+
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2018 Cadix Development (https://www.cadixdev.org)
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which accompanies this distribution,
+ * and is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.cadixdev.mercury.remapper;
+
+import net.fabricmc.tinyremapper.api.TrClass;
+import net.fabricmc.tinyremapper.api.TrEnvironment;
+import net.fabricmc.tinyremapper.api.TrField;
+import net.fabricmc.tinyremapper.api.TrMember;
+import net.fabricmc.tinyremapper.api.TrMethod;
+import net.fabricmc.tinyremapper.api.TrRemapper;
+import org.cadixdev.mercury.Mercury;
+import org.cadixdev.mercury.MercuryRun;
+import org.cadixdev.mercury.SourceContext;
+import org.cadixdev.mercury.SourceProcessor;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Counts how often the mappings are used by {@link MercuryRemapper} and
+ * writes a report when the run is finished. Add it to the processors of
+ * the {@link Mercury} instance together with the remapper.
+ *
+ * <p>The report lists the hit count of each used mapping, the mappings
+ * that were not used and the references without mapping that look
+ * obfuscated. Since the mappings cannot be enumerated, unused mappings
+ * are only reported for the given classes, or for the classes the
+ * sources referred to if none are given.</p>
+ *
+ * <p>Runs that only process some files, e.g. in
+ * {@link Mercury#watch watch mode}, keep the report of the last full run,
+ * since the counts of the other files are not known.</p>
+ */
+public final class MappingCoverage implements SourceProcessor {
+
+    // Names of common obfuscators and intermediary mappings, e.g. a, func_1234_a or method_1234
+    private static final Pattern OBFUSCATED_NAME = Pattern.compile(
+            "[a-z]{1,3}|[a-z]{1,3}\\$[a-z]{1,3}|(?:field|func|method|class|comp)_\\d+(?:_[a-zA-Z]+)?|[mfpC]_\\d+_");
+    private static final char SEPARATOR = '\t';
+    private static final int ACC_SYNTHETIC = 0x1000;
+
+    private final TrEnvironment trEnvironment;
+    private final Path report;
+    @Nullable
+    private final Collection<String> classes;
+
+    public MappingCoverage(TrEnvironment trEnvironment, Path report) {
+        this(trEnvironment, report, null);
+    }
+
+    /**
+     * @param trEnvironment The mappings used by the remapper
+     * @param report The file to write the report to
+     * @param classes The internal names of the classes to report unused mappings of
+     */
+    public MappingCoverage(TrEnvironment trEnvironment, Path report, @Nullable Collection<String> classes) {
+        this.trEnvironment = Objects.requireNonNull(trEnvironment, "trEnvironment");
+        this.report = Objects.requireNonNull(report, "report");
+        this.classes = classes;
+    }
+
+    @Override
+    public int getFlags() {
+        // The report must cover all files, so it does not support incremental runs
+        return FLAG_THREAD_SAFE;
+    }
+
+    @Override
+    public void initialize(Mercury mercury) {
+        // Each run counts separately, so runs may overlap
+        mercury.getContext().put(MappingCoverage.class, new Counter());
+    }
+
+    @Override
+    public void process(SourceContext context) {
+        // Lookups are counted by the remapper
+    }
+
+    @Override
+    public void finish(Mercury mercury) throws IOException {
+        MercuryRun run = mercury.getCurrentRun();
+        Counter counter = (Counter) mercury.getContext().get(MappingCoverage.class);
+        if (run == null || counter == null || run.isPartial()) {
+            return;
+        }
+
+        Path parent = this.report.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+
+        // Runs writing the same report, e.g. the workers of a sharded rewrite, take turns
+        try (FileChannel lockChannel = FileChannel.open(this.report.resolveSibling(this.report.getFileName() + ".lock"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock ignored = lockChannel.lock()) {
+            writeReport(this.report, counter);
+        }
+    }
+
+    @Nullable
+    static Counter get(@Nullable SourceContext context) {
+        return context != null ? (Counter) context.getRun().getContext().get(MappingCoverage.class) : null;
+    }
+
+    /**
+     * The lookups counted in a single run, stored in the
+     * {@link MercuryRun#getContext() context} of the run. Members are
+     * counted by the object the remapper resolved, their keys are only
+     * built for the report.
+     */
+    public static final class Counter {
+
+        // Internal class names, resolved TrMembers, or the keys of unresolved members
+        private final Map<Object, LongAdder> hits = new ConcurrentHashMap<>();
+        private final Map<Object, LongAdder> misses = new ConcurrentHashMap<>();
+
+        private Counter() {
+        }
+
+        void countClass(String name, String mapped) {
+            count(name, name, mapped);
+        }
+
+        /**
+         * @param member The resolved member, which is counted where it is
+         *     declared, so overrides are not reported as unused
+         */
+        void countMember(@Nullable TrMember member, String owner, String name, String desc, String mapped) {
+            if (member != null) {
+                count(member, name, mapped);
+            } else if (name.equals(mapped) && isObfuscated(name)) {
+                // Members outside of the environment have no mapping, so they can only be misses
+                this.misses.computeIfAbsent(owner + SEPARATOR + name + SEPARATOR + desc, k -> new LongAdder()).increment();
+            }
+        }
+
+        private void count(Object key, String name, String mapped) {
+            if (!name.equals(mapped)) {
+                this.hits.computeIfAbsent(key, k -> new LongAdder()).increment();
+            } else if (isObfuscated(name)) {
+                this.misses.computeIfAbsent(key, k -> new LongAdder()).increment();
+            }
+        }
+
+    }
+
+    private static boolean isObfuscated(String name) {
+        int index = Math.max(name.lastIndexOf('/'), name.lastIndexOf('.'));
+        return OBFUSCATED_NAME.matcher(name.substring(index + 1)).matches();
+    }
+
+    private Set<String> collectUnused(Map<String, Long> hits) {
+        Set<String> classes = new TreeSet<>();
+        if (this.classes != null) {
+            classes.addAll(this.classes);
+        } else {
+            for (String key : hits.keySet()) {
+                int index = key.indexOf(SEPARATOR);
+                classes.add(index == -1 ? key : key.substring(0, index));
+            }
+        }
+
+        TrRemapper remapper = this.trEnvironment.getRemapper();
+        Set<String> unused = new TreeSet<>();
+        for (String className : classes) {
+            TrClass trClass = this.trEnvironment.getClass(className);
+            if (trClass == null) {
+                continue;
+            }
+
+            if (!remapper.map(className).equals(className) && !hits.containsKey(className)) {
+                unused.add(className);
+            }
+            for (TrMethod method : trClass.getMethods()) {
+                if ((method.getAccess() & ACC_SYNTHETIC) == 0 && !method.getName().startsWith("<")
+                        && !remapper.mapMethodName(className, method.getName(), method.getDesc()).equals(method.getName())) {
+                    addUnused(unused, hits, className, method.getName(), method.getDesc());
+                }
+            }
+            for (TrField field : trClass.getFields()) {
+                if ((field.getAccess() & ACC_SYNTHETIC) == 0
+                        && !remapper.mapFieldName(className, field.getName(), field.getDesc()).equals(field.getName())) {
+                    addUnused(unused, hits, className, field.getName(), field.getDesc());
+                }
+            }
+        }
+        return unused;
+    }
+
+    private static void addUnused(Set<String> unused, Map<String, Long> hits, String owner, String name, String desc) {
+        String key = owner + SEPARATOR + name + SEPARATOR + desc;
+        if (!hits.containsKey(key)) {
+            unused.add(key);
+        }
+    }
+
+    private void writeReport(Path path, Counter counter) throws IOException {
+        Map<String, Long> hits = sum(counter.hits);
+        Map<String, Long> misses = sum(counter.misses);
+        Set<String> unused = collectUnused(hits);
+
+        try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            writer.write("# Used mappings: " + hits.size() + ", unused mappings: " + unused.size()
+                    + ", unmapped references: " + misses.size());
+            writer.write('\n');
+
+            writeCounts(writer, "used", hits);
+            writeHeader(writer, "unused");
+            for (String key : unused) {
+                writer.write(key);
+                writer.write('\n');
+            }
+            writeCounts(writer, "unmapped", misses);
+        }
+    }
+
+    private static Map<String, Long> sum(Map<Object, LongAdder> counters) {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<Object, LongAdder> entry : counters.entrySet()) {
+            result.merge(toKey(entry.getKey()), entry.getValue().sum(), Long::sum);
+        }
+        return result;
+    }
+
+    private static String toKey(Object key) {
+        if (key instanceof TrMember member) {
+            return member.getOwner().getName() + SEPARATOR + member.getName() + SEPARATOR + member.getDesc();
+        }
+        return (String) key;
+    }
+
+    private static void writeHeader(BufferedWriter writer, String name) throws IOException {
+        writer.write('\n');
+        writer.write('[' + name + ']');
+        writer.write('\n');
+    }
+
+    private static void writeCounts(BufferedWriter writer, String name, Map<String, Long> counts) throws IOException {
+        writeHeader(writer, name);
+        for (Map.Entry<String, Long> entry : counts.entrySet()) {
+            writer.write(entry.getValue() + "\t" + entry.getKey());
+            writer.write('\n');
+        }
+    }
+
+}
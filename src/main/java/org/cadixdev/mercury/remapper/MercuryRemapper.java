@@ -35,25 +35,41 @@ public static SourceRewriter createSimple(TrEnvironment mappings, boolean javado
     }
 
     private final TrEnvironment trEnvironment;
+    private final AnonymousClassIndex anonymousClasses;
     private final boolean simple;
     private final boolean javadoc;
 
     private MercuryRemapper(TrEnvironment trEnvironment, boolean simple, boolean javadoc) {
         this.trEnvironment = Objects.requireNonNull(trEnvironment, "trEnvironment");
+        this.anonymousClasses = new AnonymousClassIndex(trEnvironment);
         this.simple = simple;
         this.javadoc = javadoc;
     }
 
     @Override
     public int getFlags() {
-        return FLAG_RESOLVE_BINDINGS;
+        int flags = FLAG_RESOLVE_BINDINGS | FLAG_DECLARES_PARSER_FEATURES | FLAG_THREAD_SAFE | FLAG_INCREMENTAL
+                | FLAG_NEEDS_METHOD_BODIES | FLAG_NEEDS_BINDINGS_RECOVERY;
+        return this.javadoc ? flags | FLAG_NEEDS_JAVADOC : flags;
+    }
+
+    @Override
+    public String resolveDependency(String key) {
+        return new RemapperAdapter(this.trEnvironment).resolveDependency(key);
+    }
+
+    @Override
+    public String getConfiguration() {
+        return this.simple ? "simple" : "full";
     }
 
     @Override
     public void rewrite(RewriteContext context) {
-        context.getCompilationUnit().accept(this.simple ?
-                new SimpleRemapperVisitor(context, this.javadoc, this.trEnvironment) :
-                new RemapperVisitor(context, this.javadoc, this.trEnvironment));
+        SimpleRemapperVisitor visitor = this.simple ?
+                new SimpleRemapperVisitor(context, this.javadoc, this.trEnvironment, this.anonymousClasses) :
+                new RemapperVisitor(context, this.javadoc, this.trEnvironment, this.anonymousClasses);
+        context.getCompilationUnit().accept(visitor);
+        visitor.finish();
     }
 
 }
@@ -12,6 +12,17 @@ public ParchmentRemapper(ParchmentTree tree) {
         this.tree = tree;
     }
 
+    @Override
+    public int getFlags() {
+        // Only method declarations and their doc comments are visited
+        return FLAG_RESOLVE_BINDINGS | FLAG_DECLARES_PARSER_FEATURES | FLAG_NEEDS_JAVADOC | FLAG_THREAD_SAFE | FLAG_INCREMENTAL;
+    }
+
+    @Override
+    public String resolveDependency(String key) {
+        return ParchmentRemapperVisitor.resolveJavadoc(this.tree, key);
+    }
+
     @Override
     public void rewrite(RewriteContext context) throws Exception {
         context.getCompilationUnit().accept(new ParchmentRemapperVisitor(context, this.tree));
@@ -3,6 +3,7 @@
 import org.cadixdev.mercury.ParchmentTree;
 import org.cadixdev.mercury.RewriteContext;
 import org.eclipse.jdt.core.dom.*;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.List;
 
@@ -11,10 +12,21 @@ public class ParchmentRemapperVisitor extends ASTVisitor {
     final RewriteContext context;
     final ParchmentTree tree;
 
+    // Keys of methods that are not looked up by their binding key
+    private static final String METHOD_PREFIX = "method\t";
+    private static final char SEPARATOR = '\t';
+
     public ParchmentRemapperVisitor(RewriteContext context, ParchmentTree tree) {
         this.context = context;
         this.tree = tree;
     }
+
+    @Override
+    public boolean preVisit2(ASTNode node) {
+        this.context.checkCanceled();
+        return true;
+    }
+
     final void updateIdentifier(SimpleName node, String newName) {
         if (!node.getIdentifier().equals(newName) && !node.isVar()) {
             this.context.createASTRewrite().set(node, SimpleName.IDENTIFIER_PROPERTY, newName, null);
@@ -39,19 +51,46 @@ final Javadoc createMethodJavadoc(AST ast, String summery, List<TagElement> para
     }
 
 
+    /**
+     * Looks up the javadoc of a method by its binding key, or by a key
+     * starting with {@link #METHOD_PREFIX} for methods whose binding key
+     * cannot be looked up directly.
+     */
+    @Nullable
+    static String resolveJavadoc(ParchmentTree tree, String key) {
+        ParchmentTree.Method method;
+        if (key.startsWith(METHOD_PREFIX)) {
+            String[] parts = key.split(String.valueOf(SEPARATOR), -1);
+            method = tree.getMethod(parts[1], parts[2], parts[3]);
+        } else {
+            method = tree.getMethodByKey(key);
+        }
+
+        if (method == null) {
+            return null;
+        }
+        return String.join("\n", method.javadoc().map(ParchmentTree.Javadoc::data).orElseGet(List::of));
+    }
+
     @Override
     public boolean visit(MethodDeclaration node) {
         var binding = node.resolveBinding();
+        if (binding == null) return false;
         var clazz = binding.getDeclaringClass();
         if (clazz == null) return false;
 
-        var className = clazz.getBinaryName();
-
-        var parchmentMethod = tree.getMethod(className, binding.getName(), RemapperVisitor.methodDesc(binding));
-        if (parchmentMethod == null) return false;
+        // Most keys contain the erased descriptor already, so avoid building it
+        var key = binding.getMethodDeclaration().getKey();
+        if (!ParchmentTree.isErasedMethodKey(key)) {
+            key = METHOD_PREFIX + clazz.getBinaryName().replace('.', '/') + SEPARATOR
+                    + (binding.isConstructor() ? "<init>" : binding.getName()) + SEPARATOR + RemapperVisitor.methodDesc(binding);
+        }
 
-        List<String> jdoc = parchmentMethod.javadoc().map(ParchmentTree.Javadoc::data).orElseGet(List::of);
-        String jdocStr = String.join("\n", jdoc);
+        String jdocStr = resolveJavadoc(tree, key);
+        if (context.isRecordingDependencies()) {
+            context.addDependency(key, jdocStr);
+        }
+        if (jdocStr == null) return false;
 
         // TODO: PARAMS
 
@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) 2018 Cadix Development (https://www.cadixdev.org)
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which accompanies this distribution,
+ * and is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.cadixdev.mercury.remapper;
+
+import org.cadixdev.mercury.Mercury;
+import org.cadixdev.mercury.MercuryRun;
+import org.cadixdev.mercury.SourceContext;
+import org.cadixdev.mercury.SourceProcessor;
+import org.eclipse.jdt.core.dom.ASTNode;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records the class, method, field and parameter references resolved by
+ * {@link MercuryRemapper} while remapping, and writes them to an index
+ * file when the run is finished. Every resolved reference is recorded,
+ * whether it is mapped or not. Add it to the processors of the
+ * {@link Mercury} instance together with the remapper.
+ *
+ * <p>The index stores each column of the references separately, with
+ * all names deduplicated in a string table. It can be read again using
+ * {@link #read(Path)}.</p>
+ *
+ * <p>If a run only processes some files, e.g. in
+ * {@link Mercury#watch watch mode}, the references of the other files are
+ * taken over from the existing index.</p>
+ */
+public final class ReferenceIndex implements SourceProcessor {
+
+    private static final int MAGIC = 0x4D525249; // MRRI
+    private static final int VERSION = 1;
+
+    public enum Kind {
+        CLASS,
+        METHOD,
+        FIELD,
+        PARAMETER
+    }
+
+    /**
+     * A reference resolved by the remapper.
+     *
+     * @param kind The kind of the referenced symbol
+     * @param key The obfuscated key of the symbol. Members use the binary name
+     *     of their owner, their name and descriptor separated by tabs, and
+     *     parameters add their index.
+     * @param mappedName The name of the symbol after remapping, which is
+     *     the original name if it has no mapping
+     * @param file The path of the source file, relative to the source directory
+     * @param offset The start offset of the reference in the source file
+     * @param length The length of the reference in the source file
+     */
+    public record Reference(Kind kind, String key, String mappedName, String file, int offset, int length) {
+    }
+
+    private final Path output;
+
+    public ReferenceIndex(Path output) {
+        this.output = Objects.requireNonNull(output, "output");
+    }
+
+    public Path getOutput() {
+        return this.output;
+    }
+
+    @Override
+    public int getFlags() {
+        // The index must contain all files, so it does not support incremental runs
+        return FLAG_THREAD_SAFE;
+    }
+
+    @Override
+    public void initialize(Mercury mercury) {
+        // Each run collects its own references, so runs may overlap
+        mercury.getContext().put(ReferenceIndex.class, new Collector());
+    }
+
+    @Override
+    public void process(SourceContext context) {
+        // References are recorded by the remapper, only remember that the file was processed
+        Collector collector = get(context);
+        if (collector != null) {
+            collector.processed.add(context.getRun().relativize(context.getSourceFile()));
+        }
+    }
+
+    @Override
+    public void finish(Mercury mercury) throws IOException {
+        MercuryRun run = mercury.getCurrentRun();
+        Collector collector = (Collector) mercury.getContext().get(ReferenceIndex.class);
+        if (run == null || collector == null) {
+            return;
+        }
+
+        Path parent = this.output.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+
+        // Runs writing the same index, e.g. the workers of a sharded rewrite, take turns
+        try (FileChannel lockChannel = FileChannel.open(this.output.resolveSibling(this.output.getFileName() + ".lock"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock ignored = lockChannel.lock()) {
+            if (run.isPartial() && Files.isRegularFile(this.output)) {
+                // Keep the references of the files which were not processed again and still exist
+                List<Reference> kept = new ArrayList<>();
+                for (Reference reference : read(this.output)) {
+                    if (!collector.processed.contains(reference.file())
+                            && Files.isRegularFile(run.getSourceDir().resolve(reference.file()))) {
+                        kept.add(reference);
+                    }
+                }
+                collector.commit(kept);
+            }
+            collector.write(this.output);
+        }
+    }
+
+    @Nullable
+    static Collector get(SourceContext context) {
+        return (Collector) context.getRun().getContext().get(ReferenceIndex.class);
+    }
+
+    /**
+     * Collects the references of a single file, so they can be committed
+     * to the index at once.
+     */
+    static final class Recorder {
+
+        private final Collector collector;
+        private final String file;
+        private final List<Reference> references = new ArrayList<>();
+
+        Recorder(Collector collector, String file) {
+            this.collector = collector;
+            this.file = file;
+        }
+
+        void add(Kind kind, String key, String mappedName, ASTNode node) {
+            this.references.add(new Reference(kind, key, mappedName, this.file, node.getStartPosition(), node.getLength()));
+        }
+
+        void commit() {
+            if (!this.references.isEmpty()) {
+                this.collector.commit(this.references);
+                this.references.clear();
+            }
+        }
+
+    }
+
+    /**
+     * The references committed in a single run, stored in the
+     * {@link MercuryRun#getContext() context} of the run.
+     */
+    static final class Collector {
+
+        // The files processed in the run, including those without references
+        final Set<String> processed = ConcurrentHashMap.newKeySet();
+
+        // Columns of all references committed in the run
+        private final Map<String, Integer> stringIds = new HashMap<>();
+        private final List<String> strings = new ArrayList<>();
+        private int size;
+        private byte[] kinds = new byte[256];
+        private int[] keys = new int[256];
+        private int[] mappedNames = new int[256];
+        private int[] files = new int[256];
+        private int[] offsets = new int[256];
+        private int[] lengths = new int[256];
+
+        synchronized void commit(List<Reference> references) {
+            ensureCapacity(this.size + references.size());
+            for (Reference reference : references) {
+                this.kinds[this.size] = (byte) reference.kind().ordinal();
+                this.keys[this.size] = stringId(reference.key());
+                this.mappedNames[this.size] = stringId(reference.mappedName());
+                this.files[this.size] = stringId(reference.file());
+                this.offsets[this.size] = reference.offset();
+                this.lengths[this.size] = reference.length();
+                this.size++;
+            }
+        }
+
+        private int stringId(String value) {
+            Integer id = this.stringIds.get(value);
+            if (id == null) {
+                id = this.strings.size();
+                this.strings.add(value);
+                this.stringIds.put(value, id);
+            }
+            return id;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > this.keys.length) {
+                int newCapacity = Math.max(capacity, this.keys.length * 2);
+                this.kinds = Arrays.copyOf(this.kinds, newCapacity);
+                this.keys = Arrays.copyOf(this.keys, newCapacity);
+                this.mappedNames = Arrays.copyOf(this.mappedNames, newCapacity);
+                this.files = Arrays.copyOf(this.files, newCapacity);
+                this.offsets = Arrays.copyOf(this.offsets, newCapacity);
+                this.lengths = Arrays.copyOf(this.lengths, newCapacity);
+            }
+        }
+
+        synchronized void write(Path path) throws IOException {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+
+                out.writeInt(this.strings.size());
+                for (String value : this.strings) {
+                    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+
+                out.writeInt(this.size);
+                out.write(this.kinds, 0, this.size);
+                for (int[] column : new int[][]{this.keys, this.mappedNames, this.files, this.offsets, this.lengths}) {
+                    for (int i = 0; i < this.size; i++) {
+                        out.writeInt(column[i]);
+                    }
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Reads the references of an index file.
+     *
+     * @param path The index file
+     * @return The references, grouped by file
+     * @throws IOException If the index could not be read
+     */
+    public static List<Reference> read(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a reference index: " + path);
+            }
+
+            String[] strings = new String[in.readInt()];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+
+            int size = in.readInt();
+            byte[] kinds = new byte[size];
+            in.readFully(kinds);
+            int[][] columns = new int[5][size];
+            for (int[] column : columns) {
+                for (int i = 0; i < size; i++) {
+                    column[i] = in.readInt();
+                }
+            }
+
+            Kind[] kindValues = Kind.values();
+            List<Reference> references = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                references.add(new Reference(kindValues[kinds[i]], strings[columns[0][i]], strings[columns[1][i]],
+                        strings[columns[2][i]], columns[3][i], columns[4][i]));
+            }
+            return references;
+        }
+    }
+
+}
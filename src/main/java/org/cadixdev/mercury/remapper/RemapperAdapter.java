@@ -12,18 +12,40 @@
 
 import net.fabricmc.tinyremapper.api.TrClass;
 import net.fabricmc.tinyremapper.api.TrEnvironment;
+import net.fabricmc.tinyremapper.api.TrField;
 import net.fabricmc.tinyremapper.api.TrMethod;
 import net.fabricmc.tinyremapper.api.TrRemapper;
+import org.cadixdev.mercury.RewriteContext;
 import org.jetbrains.annotations.Nullable;
 
-public record RemapperAdapter(TrEnvironment trEnvironment) {
+/**
+ * Looks up mappings in a {@link TrEnvironment}. If a {@link RewriteContext}
+ * is given, each lookup is recorded as a dependency of the file, which
+ * can be resolved again using {@link #resolveDependency(String)}, and
+ * counted by the {@link MappingCoverage} of the run, if any.
+ */
+public record RemapperAdapter(TrEnvironment trEnvironment, @Nullable RewriteContext context, @Nullable MappingCoverage.Counter coverage) {
+    private static final char SEPARATOR = '\t';
+
+    public RemapperAdapter(TrEnvironment trEnvironment) {
+        this(trEnvironment, null);
+    }
+
+    public RemapperAdapter(TrEnvironment trEnvironment, @Nullable RewriteContext context) {
+        this(trEnvironment, context, MappingCoverage.get(context));
+    }
+
     public TrRemapper remapper() {
         return trEnvironment.getRemapper();
     }
 
     @Nullable
     public TrClass getClass(String name) {
-        return trEnvironment.getClass(name.replace('.', '/'));
+        TrClass trClass = trEnvironment.getClass(name.replace('.', '/'));
+        if (isRecording()) {
+            record(String.valueOf(trClass != null), "class", name);
+        }
+        return trClass;
     }
 
     @Nullable
@@ -34,23 +56,106 @@ public TrMethod getMethod(String owner, String name, String desc) {
             return null;
         }
 
-        return trClass.resolveMethod(name, desc);
+        TrMethod method = trClass.resolveMethod(name, desc);
+        if (isRecording()) {
+            record(method != null ? method.getOwner().getName() : null, "method", owner, name, desc);
+        }
+        return method;
     }
 
     public String mapClass(String name) {
-        return remapper().map(name.replace(".", "/")).replace("/", ".");
+        String internalName = name.replace(".", "/");
+        String mapped = remapper().map(internalName).replace("/", ".");
+        if (coverage != null) {
+            coverage.countClass(internalName, mapped.replace(".", "/"));
+        }
+        if (isRecording()) {
+            record(mapped, "mapClass", name);
+        }
+        return mapped;
     }
 
     public String mapMethodName(final String owner, final String name, final String descriptor) {
-        return remapper().mapMethodName(owner.replace(".", "/"), name, descriptor);
+        String internalOwner = owner.replace(".", "/");
+        String mapped;
+        if (coverage != null) {
+            // Resolved once, the declaring class maps the method directly and it is counted by the resolved object
+            TrClass trClass = trEnvironment.getClass(internalOwner);
+            TrMethod method = trClass != null ? trClass.resolveMethod(name, descriptor) : null;
+            mapped = remapper().mapMethodName(method != null ? method.getOwner().getName() : internalOwner, name, descriptor);
+            coverage.countMember(method, internalOwner, name, descriptor, mapped);
+        } else {
+            mapped = remapper().mapMethodName(internalOwner, name, descriptor);
+        }
+        if (isRecording()) {
+            record(mapped, "mapMethodName", owner, name, descriptor);
+        }
+        return mapped;
     }
 
     public String mapFieldName(final String owner, final String name, final String descriptor) {
-        return remapper().mapFieldName(owner.replace(".", "/"), name, descriptor);
+        String internalOwner = owner.replace(".", "/");
+        String mapped;
+        if (coverage != null) {
+            TrClass trClass = trEnvironment.getClass(internalOwner);
+            TrField field = trClass != null ? trClass.resolveField(name, descriptor) : null;
+            mapped = remapper().mapFieldName(field != null ? field.getOwner().getName() : internalOwner, name, descriptor);
+            coverage.countMember(field, internalOwner, name, descriptor, mapped);
+        } else {
+            mapped = remapper().mapFieldName(internalOwner, name, descriptor);
+        }
+        if (isRecording()) {
+            record(mapped, "mapFieldName", owner, name, descriptor);
+        }
+        return mapped;
     }
 
     public String mapMethodArg(String methodOwner, String methodName, String methodDesc, int lvIndex, String name) {
-        return remapper().mapMethodArg(methodOwner.replace(".", "/"), methodName, methodDesc, lvIndex, name);
+        String mapped = remapper().mapMethodArg(methodOwner.replace(".", "/"), methodName, methodDesc, lvIndex, name);
+        if (isRecording()) {
+            record(mapped, "mapMethodArg", methodOwner, methodName, methodDesc, Integer.toString(lvIndex), name != null ? name : "");
+        }
+        return mapped;
+    }
+
+    private boolean isRecording() {
+        return context != null && context.isRecordingDependencies();
+    }
+
+    private void record(@Nullable String value, String... key) {
+        StringBuilder builder = new StringBuilder();
+        for (String part : key) {
+            if (builder.length() > 0) {
+                builder.append(SEPARATOR);
+            }
+            builder.append(part);
+        }
+        context.addDependency(builder.toString(), value);
+    }
+
+    /**
+     * Performs a lookup recorded as a dependency again.
+     *
+     * @param key The key of the dependency
+     * @return The current result of the lookup
+     */
+    @Nullable
+    public String resolveDependency(String key) {
+        RemapperAdapter adapter = context != null ? new RemapperAdapter(trEnvironment) : this;
+        String[] parts = key.split(String.valueOf(SEPARATOR), -1);
+        return switch (parts[0]) {
+            case "class" -> String.valueOf(adapter.getClass(parts[1]) != null);
+            case "method" -> {
+                TrMethod method = adapter.getMethod(parts[1], parts[2], parts[3]);
+                yield method != null ? method.getOwner().getName() : null;
+            }
+            case "mapClass" -> adapter.mapClass(parts[1]);
+            case "mapMethodName" -> adapter.mapMethodName(parts[1], parts[2], parts[3]);
+            case "mapFieldName" -> adapter.mapFieldName(parts[1], parts[2], parts[3]);
+            case "mapMethodArg" -> adapter.mapMethodArg(parts[1], parts[2], parts[3], Integer.parseInt(parts[4]),
+                    parts[5].isEmpty() ? null : parts[5]);
+            default -> throw new IllegalArgumentException("Unknown dependency: " + key);
+        };
     }
 
     // Returns the package of the class, e.g "com.example"
@@ -26,8 +26,8 @@ class RemapperVisitor extends SimpleRemapperVisitor {
     private final Deque<ImportContext> importStack = new ArrayDeque<>();
     private final String simpleDeobfuscatedName;
 
-    RemapperVisitor(RewriteContext context, boolean javadoc, TrEnvironment trEnvironment) {
-        super(context, javadoc, trEnvironment);
+    RemapperVisitor(RewriteContext context, boolean javadoc, TrEnvironment trEnvironment, AnonymousClassIndex anonymousClasses) {
+        super(context, javadoc, trEnvironment, anonymousClasses);
 
         this.importRewrite = context.createImportRewrite();
         importRewrite.setUseContextToFilterImplicitImports(true);
@@ -71,6 +71,8 @@ private void remapType(SimpleName node, ITypeBinding binding) {
         }
 
         TrClass mapping = remapper.getClass(binding.getBinaryName());
+        recordReference(ReferenceIndex.Kind.CLASS, binding.getBinaryName(),
+                mapping != null ? remapper.getFullDeobfuscatedName(mapping) : binding.getBinaryName(), node);
 
         if (node.getParent() instanceof AbstractTypeDeclaration
                 || node.getParent() instanceof QualifiedType
@@ -107,6 +109,7 @@ private void remapQualifiedType(QualifiedName node, ITypeBinding binding) {
         }
 
         String newName = remapper.mapClass(binaryName);
+        recordReference(ReferenceIndex.Kind.CLASS, binaryName, newName, node);
         if (binaryName.equals(newName)) {
             return;
         }
@@ -127,6 +130,7 @@ private void remapInnerType(QualifiedName qualifiedName, ITypeBinding outerClass
         String deobfInnerName = remapper.mapSimpleDeobfuscatedName(fullInnerName);
 
         SimpleName node = qualifiedName.getName();
+        recordReference(ReferenceIndex.Kind.CLASS, fullInnerName, deobfInnerName, node);
         updateIdentifier(node, deobfInnerName);
     }
 
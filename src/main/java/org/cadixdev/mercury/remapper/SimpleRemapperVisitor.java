@@ -14,6 +14,7 @@
 import net.fabricmc.tinyremapper.api.TrMethod;
 import org.cadixdev.mercury.RewriteContext;
 import org.eclipse.jdt.core.dom.*;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.Collections;
 import java.util.HashSet;
@@ -31,11 +32,59 @@ class SimpleRemapperVisitor extends ASTVisitor {
 
     final RewriteContext context;
     final RemapperAdapter remapper;
+    private final AnonymousClassIndex anonymousClasses;
+    @Nullable
+    private final ReferenceIndex.Recorder references;
 
-    SimpleRemapperVisitor(RewriteContext context, boolean javadoc, TrEnvironment trEnvironment) {
+    SimpleRemapperVisitor(RewriteContext context, boolean javadoc, TrEnvironment trEnvironment, AnonymousClassIndex anonymousClasses) {
         super(javadoc);
         this.context = context;
-        this.remapper = new RemapperAdapter(trEnvironment);
+        this.remapper = new RemapperAdapter(trEnvironment, context);
+        this.anonymousClasses = anonymousClasses;
+
+        ReferenceIndex.Collector referenceIndex = ReferenceIndex.get(context);
+        this.references = referenceIndex != null
+                ? new ReferenceIndex.Recorder(referenceIndex, context.getRun().relativize(context.getSourceFile())) : null;
+    }
+
+    final void recordReference(ReferenceIndex.Kind kind, String key, String mappedName, ASTNode node) {
+        if (this.references != null) {
+            this.references.add(kind, key, mappedName, node);
+        }
+    }
+
+    /**
+     * Called once the compilation unit was visited. Commits the recorded
+     * references.
+     */
+    final void finish() {
+        if (this.references != null) {
+            this.references.commit();
+        }
+    }
+
+    @Override
+    public boolean preVisit2(ASTNode node) {
+        // Stop once the file exceeded its time budget
+        this.context.checkCanceled();
+        return true;
+    }
+
+    /**
+     * Returns the binary name to look up the member mappings of the given
+     * class with. If enabled, anonymous classes are matched to the mappings
+     * by their structure instead of their index.
+     *
+     * @see org.cadixdev.mercury.Mercury#isFlexibleAnonymousClassMemberLookups()
+     */
+    final String getMappingName(ITypeBinding binding) {
+        if (binding.isAnonymous() && this.context.getMercury().isFlexibleAnonymousClassMemberLookups()) {
+            String name = this.anonymousClasses.find(binding);
+            if (name != null) {
+                return name.replace('/', '.');
+            }
+        }
+        return binding.getBinaryName();
     }
 
     final void updateIdentifier(SimpleName node, String newName) {
@@ -50,10 +99,15 @@ private void remapMethod(SimpleName node, IMethodBinding binding) {
             return;
         }
 
+        String owner = getMappingName(declaringClass);
         if (binding.isConstructor()) {
-            updateIdentifier(node, remapper.mapSimpleDeobfuscatedName(declaringClass.getBinaryName()));
+            String name = remapper.mapSimpleDeobfuscatedName(owner);
+            recordReference(ReferenceIndex.Kind.CLASS, owner, name, node);
+            updateIdentifier(node, name);
         } else {
-            String name = remapper.mapMethodName(declaringClass.getBinaryName(), binding.getName(), methodDesc(binding));
+            String desc = methodDesc(binding);
+            String name = remapper.mapMethodName(owner, binding.getName(), desc);
+            recordReference(ReferenceIndex.Kind.METHOD, owner + '\t' + binding.getName() + '\t' + desc, name, node);
             updateIdentifier(node, name);
         }
     }
@@ -74,7 +128,10 @@ private void remapField(SimpleName node, IVariableBinding binding) {
             return;
         }
 
-        String name = remapper.mapFieldName(declaringClass.getBinaryName(), binding.getName(), fieldDesc(binding));
+        String owner = getMappingName(declaringClass);
+        String desc = fieldDesc(binding);
+        String name = remapper.mapFieldName(owner, binding.getName(), desc);
+        recordReference(ReferenceIndex.Kind.FIELD, owner + '\t' + binding.getName() + '\t' + desc, name, node);
         updateIdentifier(node, name);
     }
 
@@ -141,7 +198,11 @@ private void remapParameter(SimpleName node, IVariableBinding binding) {
             return;
         }
 
-        String newName = remapper.mapMethodArg(declaringClass.getBinaryName(), declaringMethod.getName(), methodDesc(declaringMethod), index, null);
+        String owner = getMappingName(declaringClass);
+        String desc = methodDesc(declaringMethod);
+        String newName = remapper.mapMethodArg(owner, declaringMethod.getName(), desc, index, null);
+        recordReference(ReferenceIndex.Kind.PARAMETER, owner + '\t' + declaringMethod.getName() + '\t' + desc + '\t' + index,
+                newName != null ? newName : node.getIdentifier(), node);
         if (newName != null) {
             updateIdentifier(node, newName);
         }
@@ -230,7 +291,7 @@ private void checkLocalVariableWithMappings(
             Block body
     ) {
         final ITypeBinding declaringClass = binding.getDeclaringClass();
-        final TrMethod method = remapper.getMethod(declaringClass.getBinaryName(), binding.getName(), methodDesc(binding));
+        final TrMethod method = remapper.getMethod(getMappingName(declaringClass), binding.getName(), methodDesc(binding));
 
         if (method == null) {
             return;
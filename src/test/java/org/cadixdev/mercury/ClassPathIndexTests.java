@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2018 Cadix Development (https://www.cadixdev.org)
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which accompanies this distribution,
+ * and is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.cadixdev.mercury;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ClassPathIndexTests {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void prune() throws IOException {
+        final Path classes = this.tempDir.resolve("classes");
+        createFile(classes.resolve("a/b/C.class"));
+        createFile(classes.resolve("a/package-info.class"));
+
+        final Path defaultPackage = this.tempDir.resolve("default");
+        createFile(defaultPackage.resolve("D.class"));
+
+        final Path jar = this.tempDir.resolve("lib.jar");
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(jar))) {
+            for (String name : new String[]{"module-info.class", "x/Y.class", "x/Y.txt", "META-INF/versions/9/z/Z.class"}) {
+                out.putNextEntry(new ZipEntry(name));
+                out.closeEntry();
+            }
+        }
+
+        final ClassPathIndex index = ClassPathIndex.build(List.of(classes, defaultPackage, jar));
+        assertTrue(index.isFor(List.of(classes, defaultPackage, jar)));
+        assertFalse(index.isFor(List.of(classes, jar)));
+
+        // Entries providing the default package are always kept
+        assertEquals(List.of(defaultPackage), index.prune(Set.of()));
+        assertEquals(List.of(classes, defaultPackage), index.prune(Set.of("a.b")));
+        assertEquals(List.of(defaultPackage), index.prune(Set.of("a")));
+        assertEquals(List.of(defaultPackage, jar), index.prune(Set.of("z")));
+        assertEquals(List.of(classes, defaultPackage, jar), index.prune(Set.of("x", "a.b", "unknown")));
+    }
+
+    @Test
+    void collectNames() throws IOException {
+        final Path source = this.tempDir.resolve("Test.java");
+        Files.write(source, String.join("\n",
+                "package com.example;",
+                "",
+                "import java.util . List;",
+                "",
+                "// import hidden.line;",
+                "/* hidden.block */",
+                "class Test {",
+                "    String s = \"string.literal\";",
+                "    char c = '.';",
+                "    java.util.Map<String, org.example.Value> map;",
+                "}",
+                "").getBytes(StandardCharsets.UTF_8));
+
+        final Set<String> names = ClassPathIndex.collectNames(new String[]{source.toString()}, StandardCharsets.UTF_8);
+        for (String name : new String[]{"com", "com.example", "java", "java.util", "java.util.List", "org.example", "Test"}) {
+            assertTrue(names.contains(name), name);
+        }
+        for (String name : new String[]{"hidden", "hidden.line", "hidden.block", "string", "string.literal", "Map.String"}) {
+            assertFalse(names.contains(name), name);
+        }
+    }
+
+    private static void createFile(final Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        try (OutputStream ignored = Files.newOutputStream(file)) {
+            // Only the names of the classes are indexed
+        }
+    }
+
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2018 Cadix Development (https://www.cadixdev.org)
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which accompanies this distribution,
+ * and is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.cadixdev.mercury;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FileSchedulerTests {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void schedule() {
+        final String[] files = {"E.java", "a/A.java", "a/B.java", "a/C.java", "b/D.java", "b/F.java"};
+        final long[] costs = {20, 60, 30, 30, 40, 10};
+
+        // Three batches with a target of 63: a/A.java alone, since a/B.java doesn't fit anymore,
+        // then the rest of each directory, and E.java is added to the cheapest batch
+        assertArrayEquals(new String[][]{
+                {"E.java", "b/D.java", "b/F.java"},
+                {"a/A.java"},
+                {"a/B.java", "a/C.java"}
+        }, FileScheduler.schedule(files, costs, 1));
+
+        // No more batches than files
+        assertEquals(files.length, FileScheduler.schedule(files, costs, 4).length);
+    }
+
+    @Test
+    void profile() throws IOException {
+        final Path profile = this.tempDir.resolve("profile/times.txt");
+        assertTrue(FileScheduler.readProfile(null).isEmpty());
+        assertTrue(FileScheduler.readProfile(profile).isEmpty());
+
+        // Files that were not processed again keep their previous time
+        FileScheduler.writeProfile(profile, Map.of("a/A.java", 5L, "old/X.java", 7L), Map.of("a/A.java", 10L, "b/B.java", 20L));
+        assertEquals(Map.of("a/A.java", 10L, "b/B.java", 20L, "old/X.java", 7L), FileScheduler.readProfile(profile));
+
+        Files.write(profile, "10\ta/A.java\nbroken\nx\tb/B.java\n".getBytes(StandardCharsets.UTF_8));
+        assertEquals(Map.of("a/A.java", 10L), FileScheduler.readProfile(profile));
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2018 Cadix Development (https://www.cadixdev.org)
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which accompanies this distribution,
+ * and is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.cadixdev.mercury;
+
+import org.eclipse.jface.text.Document;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+class OutputEncoderTests {
+
+    // Same as OutputEncoder.CHUNK_SIZE
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void surrogatePairAcrossChunks() throws IOException {
+        // The high surrogate is the last character of the first chunk
+        final String content = "a".repeat(CHUNK_SIZE - 1) + "\uD83D\uDE00" + "b".repeat(CHUNK_SIZE);
+        this.verify(content, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void unmappableCharacters() throws IOException {
+        // Characters ISO-8859-1 can't encode, including a surrogate pair and a lone surrogate
+        final String content = "h\u00E9llo \u20AC \uD83D\uDE00 \uD800 ".repeat(CHUNK_SIZE / 8);
+        this.verify(content, StandardCharsets.ISO_8859_1);
+        this.verify(content, StandardCharsets.US_ASCII);
+        this.verify(content, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void empty() throws IOException {
+        this.verify("", StandardCharsets.UTF_8);
+        this.verify("", StandardCharsets.UTF_16);
+    }
+
+    @Test
+    void alternatingCharsets() throws IOException {
+        // Pooled encoders are reused for other charsets
+        for (int i = 0; i < 4; i++) {
+            this.verify("\u00E9\u20AC", StandardCharsets.UTF_8);
+            this.verify("\u00E9\u20AC", StandardCharsets.ISO_8859_1);
+            this.verify("\u00E9\u20AC", StandardCharsets.UTF_16);
+        }
+    }
+
+    private void verify(final String content, final Charset charset) throws IOException {
+        final Path file = this.tempDir.resolve("Test.java");
+        OutputEncoder.write(new Document(content), file, charset);
+        assertArrayEquals(expected(content, charset), Files.readAllBytes(file));
+    }
+
+    private static byte[] expected(final String content, final Charset charset) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (Writer writer = new OutputStreamWriter(out, charset)) {
+            writer.write(content);
+        }
+        return out.toByteArray();
+    }
+
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2018 Cadix Development (https://www.cadixdev.org)
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which accompanies this distribution,
+ * and is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.cadixdev.mercury;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class OutputQueueTests {
+
+    @Test
+    void failure() throws Exception {
+        final OutputQueue queue = new OutputQueue(2);
+        queue.submit("A.java", () -> {
+            throw new IOException("Disk full");
+        });
+
+        final RuntimeException e = assertThrows(RuntimeException.class, queue::close);
+        assertEquals("Failed to write: A.java", e.getMessage());
+        assertInstanceOf(IOException.class, e.getCause());
+    }
+
+    @Test
+    void error() throws Exception {
+        final OutputQueue queue = new OutputQueue(2);
+        queue.submit("A.java", () -> {
+            throw new StackOverflowError();
+        });
+
+        // Errors are not lost, close() must not report success
+        assertThrows(StackOverflowError.class, queue::close);
+    }
+
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2018 Cadix Development (https://www.cadixdev.org)
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which accompanies this distribution,
+ * and is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.cadixdev.mercury;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ShardCoordinatorTests {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void split() throws IOException {
+        final Path a = this.createFile("a/A.java", 600);
+        final Path b = this.createFile("a/B.java", 300);
+        final Path c = this.createFile("C.java", 300);
+        final Path d = this.createFile("d/D.java", 200);
+        final Path e = this.createFile("E.java", 100);
+        this.createFile("F.txt", 1000);
+
+        // Largest first, each into the smallest shard so far, ties keep the order of the paths
+        assertEquals(List.of(
+                List.of(a.toString(), d.toString()),
+                List.of(c.toString(), b.toString(), e.toString())
+        ), ShardCoordinator.split(this.tempDir, 2));
+
+        assertEquals(List.of(
+                List.of(a.toString()),
+                List.of(c.toString(), d.toString()),
+                List.of(b.toString(), e.toString())
+        ), ShardCoordinator.split(this.tempDir, 3));
+    }
+
+    @Test
+    void moreShardsThanFiles() throws IOException {
+        final Path a = this.createFile("A.java", 10);
+
+        assertEquals(List.of(List.of(a.toString()), List.of(), List.of()), ShardCoordinator.split(this.tempDir, 3));
+    }
+
+    @Test
+    void invalidShards() {
+        assertThrows(IllegalArgumentException.class, () -> ShardCoordinator.split(this.tempDir, 0));
+        assertThrows(IllegalArgumentException.class, () -> ShardCoordinator.split(this.tempDir, -1));
+    }
+
+    private Path createFile(final String name, final int size) throws IOException {
+        final Path file = this.tempDir.resolve(name);
+        Files.createDirectories(file.getParent());
+        Files.write(file, new byte[size]);
+        return file;
+    }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2018 Cadix Development (https://www.cadixdev.org)
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which accompanies this distribution,
+ * and is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.cadixdev.mercury.test;
+
+import net.fabricmc.tinyremapper.TinyRemapper;
+import org.cadixdev.mercury.InMemoryNameEnvironment;
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.ClassNode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Paths;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InMemoryNameEnvironmentTests {
+
+    @Test
+    void addClass() throws IOException {
+        final String name = InMemoryNameEnvironmentTests.class.getName().replace('.', '/');
+        final byte[] bytes;
+        try (final InputStream in = InMemoryNameEnvironmentTests.class.getResourceAsStream("/" + name + ".class")) {
+            bytes = in.readAllBytes();
+        }
+
+        final InMemoryNameEnvironment environment = new InMemoryNameEnvironment();
+        environment.addClass(name, bytes);
+
+        assertTrue(environment.isPackage("org/cadixdev/mercury/test"));
+        assertTrue(environment.isPackage("org/cadixdev"));
+        assertFalse(environment.isPackage("org/cadixdev/mercury/test/InMemoryNameEnvironmentTests"));
+
+        assertSame(bytes, environment.getClassBytes(name));
+        assertNull(environment.getClassBytes("org/Missing"));
+    }
+
+    @Test
+    void analyzeVisitorProvider() throws IOException {
+        final InMemoryNameEnvironment environment = new InMemoryNameEnvironment();
+        final TinyRemapper tinyRemapper = TinyRemapper.newRemapper()
+                .extraAnalyzeVisitor(environment.createAnalyzeVisitorProvider())
+                .build();
+        try {
+            tinyRemapper.readInputs(Paths.get("build/classes/java/testInput"));
+        } finally {
+            tinyRemapper.finish();
+        }
+
+        // The classes are copied while tiny-remapper reads them
+        assertTrue(environment.isPackage("test"));
+        final byte[] bytes = environment.getClassBytes("test/ObfClass");
+        assertNotNull(bytes);
+        final ClassNode node = new ClassNode();
+        new ClassReader(bytes).accept(node, 0);
+        assertEquals("test/ObfClass", node.name);
+        assertTrue(node.methods.stream().anyMatch(method -> method.name.equals("name")));
+    }
+
+}
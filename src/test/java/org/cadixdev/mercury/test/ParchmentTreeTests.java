@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2018 Cadix Development (https://www.cadixdev.org)
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which accompanies this distribution,
+ * and is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.cadixdev.mercury.test;
+
+import org.cadixdev.mercury.ParchmentTree;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ParchmentTreeTests {
+
+    static Path parchmentFile() throws URISyntaxException {
+        return Paths.get(Objects.requireNonNull(ParchmentTreeTests.class.getResource("/parchment.json")).toURI());
+    }
+
+    @Test
+    void loadFile() throws IOException, URISyntaxException {
+        verify(ParchmentTree.loadFile(parchmentFile()));
+    }
+
+    @Test
+    void cacheRoundTrip(@TempDir Path tempDir) throws IOException, URISyntaxException {
+        final Path cache = tempDir.resolve("parchment.cache");
+        ParchmentTree.loadFile(parchmentFile()).saveCache(cache);
+
+        final ParchmentTree tree = ParchmentTree.loadCache(cache);
+        verify(tree);
+
+        // Saving a lazily decoded tree must keep the classes which were never looked up
+        final Path copy = tempDir.resolve("copy.cache");
+        ParchmentTree.loadCache(cache).saveCache(copy);
+        verify(ParchmentTree.loadCache(copy));
+    }
+
+    @Test
+    void corruptCache(@TempDir Path tempDir) throws IOException, URISyntaxException {
+        final Path cache = tempDir.resolve("parchment.cache");
+        ParchmentTree.loadFile(parchmentFile()).saveCache(cache);
+
+        // Cut off the snapshot, like a process killed while writing it
+        final byte[] bytes = Files.readAllBytes(cache);
+        Files.write(cache, Arrays.copyOf(bytes, bytes.length / 2));
+        assertThrows(IOException.class, () -> ParchmentTree.loadCache(cache));
+
+        // The export is parsed again and the snapshot is rebuilt
+        Files.setLastModifiedTime(cache, FileTime.from(Instant.now().plusSeconds(60)));
+        final List<IOException> errors = new ArrayList<>();
+        verify(ParchmentTree.loadFile(parchmentFile(), cache, errors::add));
+        assertEquals(1, errors.size());
+        verify(ParchmentTree.loadCache(cache));
+        try (Stream<Path> files = Files.list(tempDir)) {
+            assertEquals(List.of(cache), files.toList(), "Temporary file was not moved");
+        }
+    }
+
+    @Test
+    void unwritableCache(@TempDir Path tempDir) throws IOException, URISyntaxException {
+        // The parent of the snapshot is a file, so it can't be written
+        final Path parent = tempDir.resolve("parent");
+        Files.write(parent, new byte[0]);
+        final List<IOException> errors = new ArrayList<>();
+        verify(ParchmentTree.loadFile(parchmentFile(), parent.resolve("parchment.cache"), errors::add));
+        assertEquals(1, errors.size());
+    }
+
+    @Test
+    void erasedMethodKeys() {
+        assertTrue(ParchmentTree.isErasedMethodKey("Ltest/ObfClass;.name()Ljava/lang/String;"));
+        assertTrue(ParchmentTree.isErasedMethodKey("Ltest/ObfClass;.(I[[Ljava/lang/String;)V"));
+        assertTrue(ParchmentTree.isErasedMethodKey("Ltest/Box<TT;>;.size()I"));
+
+        assertFalse(ParchmentTree.isErasedMethodKey("Ltest/Box<TT;>;.get()TT;"));
+        assertFalse(ParchmentTree.isErasedMethodKey("Ltest/ObfClass;.map<T:Ljava/lang/Object;>(TT;)V"));
+        assertFalse(ParchmentTree.isErasedMethodKey("Ltest/ObfClass;.names()Ljava/util/List<Ljava/lang/String;>;"));
+        assertFalse(ParchmentTree.isErasedMethodKey("Ltest/ObfClass$42$Local;.run()V"));
+    }
+
+    @Test
+    void methodKeysOfManyClasses(@TempDir Path tempDir) throws IOException {
+        final StringBuilder json = new StringBuilder("{\"version\": \"1.1.0\", \"classes\": [");
+        for (int i = 0; i < 100; i++) {
+            if (i > 0) json.append(',');
+            json.append("{\"name\": \"test/C").append(i).append("\", \"methods\": [")
+                    .append("{\"name\": \"run\", \"descriptor\": \"()V\"},")
+                    .append("{\"name\": \"run\", \"descriptor\": \"(I)V\"},")
+                    .append("{\"name\": \"<init>\", \"descriptor\": \"()V\"}]}");
+        }
+        json.append("]}");
+        final Path file = tempDir.resolve("parchment.json");
+        Files.writeString(file, json);
+        final Path cache = tempDir.resolve("parchment.cache");
+        ParchmentTree.loadFile(file).saveCache(cache);
+
+        for (final ParchmentTree tree : List.of(ParchmentTree.loadFile(file), ParchmentTree.loadCache(cache))) {
+            for (int i = 0; i < 100; i++) {
+                final String className = "test/C" + i;
+                assertSame(tree.getMethod(className, "run", "()V"), tree.getMethodByKey("L" + className + ";.run()V"));
+                assertSame(tree.getMethod(className, "run", "(I)V"), tree.getMethodByKey("L" + className + ";.run(I)V"));
+                assertSame(tree.getMethod(className, "<init>", "()V"), tree.getMethodByKey("L" + className + ";.()V"));
+                assertNotNull(tree.getMethodByKey("L" + className + ";.run()V"));
+            }
+
+            // Prefixes of the names must not match
+            assertNull(tree.getMethodByKey("Ltest/C;.run()V"));
+            assertNull(tree.getMethodByKey("Ltest/C1;.ru()V"));
+            assertNull(tree.getMethodByKey("Ltest/C1;.run(J)V"));
+            assertNull(tree.getMethodByKey("Ltest/C100;.run()V"));
+        }
+    }
+
+    private static void verify(final ParchmentTree tree) {
+        final ParchmentTree.Method name = tree.getMethod("test/ObfClass", "name", "()Ljava/lang/String;");
+        assertNotNull(name);
+        assertEquals(List.of("Gets the name.", "Never null."), name.javadoc().orElseThrow().data());
+
+        final ParchmentTree.Method setName = tree.getMethod("test/ObfClass", "setName", "(Ljava/lang/String;)V");
+        assertNotNull(setName);
+        assertEquals("name", setName.parameters().get(0).name());
+        assertEquals(List.of("The new name"), setName.parameters().get(0).javadoc().orElseThrow().data());
+
+        final ParchmentTree.Field field = tree.getField("test/ObfClass", "name", "Ljava/lang/String;");
+        assertNotNull(field);
+        assertEquals(List.of("The name"), field.javadoc().orElseThrow().data());
+
+        assertSame(name, tree.getMethodByKey("Ltest/ObfClass;.name()Ljava/lang/String;"));
+        assertSame(setName, tree.getMethodByKey("Ltest/ObfClass;.setName(Ljava/lang/String;)V|Ljava/io/IOException;"));
+
+        assertNull(tree.getMethod("test/ObfClass", "name", "()V"));
+        assertNull(tree.getMethod("test/ObfClass$Inner", "name", "()Ljava/lang/String;"));
+        assertNull(tree.getField("test/Missing", "name", "Ljava/lang/String;"));
+    }
+
+}
@@ -14,27 +14,77 @@
 import net.fabricmc.mappingio.tree.MemoryMappingTree;
 import net.fabricmc.tinyremapper.TinyRemapper;
 import net.fabricmc.tinyremapper.TinyUtils;
+import net.fabricmc.tinyremapper.api.TrEnvironment;
+import org.cadixdev.mercury.FileTimings;
+import org.cadixdev.mercury.InMemoryNameEnvironment;
 import org.cadixdev.mercury.Mercury;
+import org.cadixdev.mercury.RewriteContext;
+import org.cadixdev.mercury.SourceContext;
+import org.cadixdev.mercury.SourceError;
+import org.cadixdev.mercury.SourceProcessor;
+import org.cadixdev.mercury.SourceRewriter;
+import org.cadixdev.mercury.SourceWatcher;
+import org.cadixdev.mercury.remapper.MappingCoverage;
 import org.cadixdev.mercury.remapper.MercuryRemapper;
+import org.cadixdev.mercury.remapper.ReferenceIndex;
 import org.eclipse.jdt.core.JavaCore;
+import org.eclipse.jdt.core.compiler.IProblem;
+import org.eclipse.jdt.core.dom.ASTNode;
+import org.eclipse.jdt.core.dom.CompilationUnit;
+import org.eclipse.jdt.core.dom.ITypeBinding;
+import org.eclipse.jdt.core.dom.ImportDeclaration;
+import org.eclipse.jdt.core.dom.TypeDeclaration;
+import org.eclipse.jdt.core.dom.rewrite.ASTRewrite;
+import org.eclipse.jdt.core.dom.rewrite.ListRewrite;
+import org.jetbrains.annotations.Nullable;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.ValueSource;
 
 import java.io.*;
+import java.lang.ref.WeakReference;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.tools.ToolProvider;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class RemappingTests {
 
+    // Used by the tests sharing a Fixture, remap() manages its own directory
+    @TempDir
+    Path workDir;
+
     // Mercury contains the following tests:
     // 1. Simple remaps
     //    This test is used to verify that Mercury can remap simple things:
@@ -159,6 +209,979 @@ void remap(String file) throws Exception {
         tinyRemapper.finish();
     }
 
+    @Test
+    void diff() throws Exception {
+        try (Fixture fixture = this.fixture("test/ObfClass.java", "NonNull.java", "ParameterTest.java", "anon/Test.java")) {
+            final Path patch = this.workDir.resolve("remap.patch");
+            fixture.mercury().setParallelism(4);
+            fixture.mercury().diff(fixture.in(), patch);
+
+            // Only the remapped classes should be part of the patch
+            final String actual = new String(Files.readAllBytes(patch), StandardCharsets.UTF_8);
+            assertTrue(actual.contains(String.join("\n",
+                    "--- a/test/ObfClass.java",
+                    "+++ b/Core.java",
+                    "@@ -8,14 +8,14 @@",
+                    "  * SPDX-License-Identifier: EPL-2.0",
+                    "  */",
+                    " ",
+                    "-package test;",
+                    " ",
+                    "-public class ObfClass {",
+                    " ",
+                    "-    private static final String name = \"Bob\";",
+                    "+public class Core {",
+                    " ",
+                    "-    public static String name() {",
+                    "-        return name;",
+                    "+    private static final String firstName = \"Bob\";",
+                    "+",
+                    "+    public static String firstName() {",
+                    "+        return firstName;",
+                    "     }",
+                    " ",
+                    " }",
+                    "")), actual);
+            assertFalse(actual.contains("NonNull.java"), actual);
+
+            // The files are rewritten in parallel, but the patch is sorted by path
+            final List<String> files = actual.lines().filter(line -> line.startsWith("--- a/")).collect(Collectors.toList());
+            assertTrue(files.size() > 1, actual);
+            assertEquals(files.stream().sorted().collect(Collectors.toList()), files);
+        }
+    }
+
+    @Test
+    void reorderedAnonymousClasses() throws Exception {
+        try (Fixture fixture = this.fixture()) {
+            // The anonymous classes of anon/Test in a different order, so their indexes differ from the bytecode
+            final Path source = fixture.in().resolve("anon/Test.java");
+            Files.createDirectories(source.getParent());
+            Files.write(source, ("package anon;\n\npublic class Test {\n    public void testMethod() {\n"
+                    + "        new Object() {\n            public void name(double first, double second) {}\n        };\n"
+                    + "        new Object() {\n            public void name(int first, int second) {}\n            public int field;\n        };\n"
+                    + "        new Object() {\n            public void name(boolean first, boolean second) {}\n        };\n"
+                    + "    }\n}\n").getBytes(StandardCharsets.UTF_8));
+
+            final Path out = this.workDir.resolve("b");
+            fixture.mercury().setFlexibleAnonymousClassMemberLookups(true);
+            fixture.mercury().rewrite(fixture.in(), out);
+
+            final String actual = read(out.resolve("anon/Anon.java"));
+            assertTrue(actual.contains("public void remapped(double first, double second)"), actual);
+            assertTrue(actual.contains("public void remapped(int first, int second)"), actual);
+            assertTrue(actual.contains("public int abc;"), actual);
+            assertTrue(actual.contains("public void remapped(boolean first, boolean second)"), actual);
+        }
+    }
+
+    @Test
+    void ambiguousAnonymousClasses() throws Exception {
+        try (Fixture fixture = this.fixture("anon/Ambiguous.java")) {
+            final Path out = this.workDir.resolve("b");
+            fixture.mercury().setFlexibleAnonymousClassMemberLookups(true);
+            fixture.mercury().rewrite(fixture.in(), out);
+
+            // Both classes have the same structure, so they are looked up by their binary name
+            final String actual = read(out.resolve("anon/Ambiguous.java"));
+            final int first = actual.indexOf("public void first()");
+            final int second = actual.indexOf("public void second()");
+            assertTrue(first != -1 && second > first, actual);
+        }
+    }
+
+    @Test
+    void declaredParserFeatures() throws Exception {
+        // Processors declaring their features only get method bodies if they ask for them
+        assertEquals(List.of(), this.parseMethodBody(SourceProcessor.FLAG_DECLARES_PARSER_FEATURES, "int a = 1;"));
+        assertEquals(List.of("int a=1;"), this.parseMethodBody(
+                SourceProcessor.FLAG_DECLARES_PARSER_FEATURES | SourceProcessor.FLAG_NEEDS_METHOD_BODIES, "int a = 1;"));
+    }
+
+    @Test
+    void defaultParserFeatures() throws Exception {
+        // Processors without FLAG_DECLARES_PARSER_FEATURES get PARSER_FEATURES
+        assertEquals(List.of("int a=1;"), this.parseMethodBody(0, "int a = 1;"));
+    }
+
+    @Test
+    void statementsRecovery() throws Exception {
+        final String body = "int a = 1;\n        System.out.println(a";
+
+        // Not part of PARSER_FEATURES, so the malformed body is dropped unless recovery is requested
+        assertEquals(List.of(), this.parseMethodBody(0, body));
+        assertTrue(this.parseMethodBody(SourceProcessor.FLAG_NEEDS_STATEMENTS_RECOVERY, body).contains("int a=1;"));
+    }
+
+    /**
+     * Parses a class with a single method, using a processor with the given
+     * flags, and returns the statements of the method body.
+     */
+    List<String> parseMethodBody(final int flags, final String body) throws Exception {
+        final Path in = Files.createTempDirectory(this.workDir, "features");
+        Files.createDirectories(in.resolve("test"));
+        Files.writeString(in.resolve("test/Features.java"),
+                "package test;\n\nclass Features {\n\n    void run() {\n        " + body + "\n    }\n\n}\n");
+
+        final Mercury mercury = new Mercury();
+        mercury.setSourceCompatibility(JavaCore.VERSION_11);
+        final List<String> statements = new ArrayList<>();
+        mercury.getProcessors().add(new SourceProcessor() {
+            @Override
+            public int getFlags() {
+                return flags;
+            }
+
+            @Override
+            public void process(SourceContext context) {
+                final TypeDeclaration type = (TypeDeclaration) context.getCompilationUnit().types().get(0);
+                for (Object statement : type.getMethods()[0].getBody().statements()) {
+                    statements.add(statement.toString().trim());
+                }
+            }
+        });
+        mercury.process(in);
+        return statements;
+    }
+
+    @Test
+    void createTypeBindings() throws Exception {
+        try (Fixture fixture = this.fixture("test/ObfClass.java")) {
+            final Mercury mercury = fixture.mercury();
+            final List<Map<String, ITypeBinding>> results = new ArrayList<>();
+            mercury.getProcessors().add(0, new SourceProcessor() {
+                @Override
+                public int getFlags() {
+                    return FLAG_RESOLVE_BINDINGS;
+                }
+
+                @Override
+                public void process(SourceContext context) {
+                    // Hits, a miss and an anonymous class, which can't be looked up
+                    final List<String> names = List.of("test.ObfClass", "java.lang.String", "missing.Type", "anon.Test$1");
+                    results.add(context.getMercury().createTypeBindings(names));
+                    // Looked up again from the cache
+                    results.add(context.getMercury().createTypeBindings(names));
+                }
+            });
+            mercury.process(fixture.in());
+
+            assertEquals(2, results.size());
+            final Map<String, ITypeBinding> bindings = results.get(0);
+            assertEquals(Set.of("test.ObfClass", "java.lang.String"), bindings.keySet());
+            assertEquals("test.ObfClass", bindings.get("test.ObfClass").getBinaryName());
+            assertEquals("java.lang.String", bindings.get("java.lang.String").getBinaryName());
+            assertEquals(bindings.keySet(), results.get(1).keySet());
+            assertSame(bindings.get("test.ObfClass"), results.get(1).get("test.ObfClass"));
+
+            // Bindings only exist while a file is processed
+            assertThrows(IllegalStateException.class, () -> mercury.createTypeBindings(List.of("test.ObfClass")));
+        }
+    }
+
+    @Test
+    void anonymousTypeBindings() throws Exception {
+        try (Fixture fixture = this.fixture("anon/Test.java")) {
+            final List<Map<String, ITypeBinding>> results = new ArrayList<>();
+            fixture.mercury().getProcessors().add(0, new SourceProcessor() {
+                @Override
+                public int getFlags() {
+                    return FLAG_RESOLVE_BINDINGS;
+                }
+
+                @Override
+                public void process(SourceContext context) {
+                    // Left out even while the declaring file is processed
+                    results.add(context.getMercury().createTypeBindings(List.of("anon.Test", "anon.Test$1", "anon.Test$2")));
+                    assertTrue(context.getMercury().createTypeBinding("anon.Test$3").isEmpty());
+                }
+            });
+            fixture.mercury().process(fixture.in());
+
+            assertEquals(1, results.size());
+            assertEquals(Set.of("anon.Test"), results.get(0).keySet());
+        }
+    }
+
+    @Test
+    void concurrentRuns() throws Exception {
+        final Path[] inputs = new Path[4];
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i] = this.workDir.resolve("a" + i);
+            this.copy(inputs[i], "test/ObfClass.java");
+            this.copy(inputs[i], "NonNull.java");
+        }
+
+        // A single instance is shared by all runs
+        try (Fixture fixture = this.fixture()) {
+            final ExecutorService executor = Executors.newFixedThreadPool(inputs.length);
+            try {
+                final List<Future<?>> futures = new ArrayList<>();
+                for (int i = 0; i < inputs.length; i++) {
+                    final Path in = inputs[i];
+                    final Path out = this.workDir.resolve("b" + i);
+                    futures.add(executor.submit(() -> {
+                        fixture.mercury().rewrite(in, out);
+                        return null;
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } finally {
+                executor.shutdown();
+            }
+
+            for (int i = 0; i < inputs.length; i++) {
+                this.verify(this.workDir.resolve("b" + i), "Core.java");
+                assertEquals(read(inputs[i].resolve("NonNull.java")), read(this.workDir.resolve("b" + i).resolve("NonNull.java")));
+            }
+        }
+    }
+
+    @Test
+    void parallelism() throws Exception {
+        try (Fixture fixture = this.fixture("test/ObfClass.java", "NonNull.java", "JavadocTest.java", "NameQualifiedTest.java")) {
+            final Mercury mercury = fixture.mercury();
+
+            final Path sequential = this.workDir.resolve("b");
+            mercury.rewrite(fixture.in(), sequential);
+            this.verify(sequential, "Core.java");
+
+            final Path parallel = this.workDir.resolve("c");
+            mercury.setParallelism(2);
+            mercury.rewrite(fixture.in(), parallel);
+
+            final Path background = this.workDir.resolve("d");
+            mercury.setOutputConcurrency(4);
+            mercury.rewrite(fixture.in(), background);
+
+            // All runs should produce the same files
+            try (Stream<Path> files = Files.walk(sequential)) {
+                for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                    final String expected = read(file);
+                    for (Path out : new Path[]{parallel, background}) {
+                        assertEquals(expected, read(out.resolve(sequential.relativize(file))));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void incremental() throws Exception {
+        try (Fixture fixture = this.fixture("test/ObfClass.java", "NonNull.java")) {
+            final Mercury mercury = fixture.mercury();
+            final Path out = this.workDir.resolve("b");
+            mercury.setIncrementalIndex(this.workDir.resolve("mercury.index"));
+            mercury.rewrite(fixture.in(), out);
+            this.verify(out, "Core.java");
+
+            // Neither the source nor the mappings changed, so the output is kept
+            Files.write(out.resolve("NonNull.java"), "unchanged".getBytes(StandardCharsets.UTF_8));
+            mercury.rewrite(fixture.in(), out);
+            assertEquals("unchanged", read(out.resolve("NonNull.java")));
+
+            // A missing output is written again
+            Files.delete(out.resolve("Core.java"));
+            mercury.rewrite(fixture.in(), out);
+            this.verify(out, "Core.java");
+
+            // Only the file using the changed mapping is rewritten
+            final TinyRemapper changed = this.createRemapper(mappings().replace(
+                    "MD test/ObfClass name ()Ljava/lang/String; firstName", "MD test/ObfClass name ()Ljava/lang/String; lastName"));
+            try {
+                mercury.getProcessors().set(0, MercuryRemapper.create(changed.getEnvironment()));
+                mercury.rewrite(fixture.in(), out);
+            } finally {
+                changed.finish();
+            }
+            assertEquals("unchanged", read(out.resolve("NonNull.java")));
+            final String core = read(out.resolve("Core.java"));
+            assertTrue(core.contains("lastName()") && core.contains("firstName;"), core);
+
+            // The simple remapper produces different output, so nothing is kept
+            mercury.getProcessors().set(0, MercuryRemapper.createSimple(fixture.environment()));
+            mercury.rewrite(fixture.in(), out);
+            assertEquals(read(fixture.in().resolve("NonNull.java")), read(out.resolve("NonNull.java")));
+        }
+    }
+
+    @Test
+    void incrementalSourceDependencies() throws Exception {
+        try (Fixture fixture = this.fixture("test/ObfClass.java", "NonNull.java")) {
+            Files.write(fixture.in().resolve("Uses.java"),
+                    "public class Uses {\n    String get() {\n        return test.ObfClass.name();\n    }\n}\n".getBytes(StandardCharsets.UTF_8));
+            final Mercury mercury = fixture.mercury();
+            final Path out = this.workDir.resolve("b");
+            final Path index = this.workDir.resolve("mercury.index");
+            mercury.setIncrementalIndex(index);
+            mercury.rewrite(fixture.in(), out);
+
+            Files.write(out.resolve("Uses.java"), "unchanged".getBytes(StandardCharsets.UTF_8));
+            Files.write(out.resolve("NonNull.java"), "unchanged".getBytes(StandardCharsets.UTF_8));
+            mercury.rewrite(fixture.in(), out);
+            assertEquals("unchanged", read(out.resolve("Uses.java")));
+
+            // The declaring file of a binding Uses refers to changed, so its bindings may differ
+            final Path obfClass = fixture.in().resolve("test/ObfClass.java");
+            Files.write(obfClass, "\n// Changed\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+            mercury.rewrite(fixture.in(), out);
+            final String uses = read(out.resolve("Uses.java"));
+            assertTrue(uses.contains("Core.firstName()"), uses);
+            assertEquals("unchanged", read(out.resolve("NonNull.java")));
+
+            // The index is replaced as a whole, without leaving temporary files behind
+            try (Stream<Path> files = Files.list(this.workDir)) {
+                assertEquals(List.of(), files.filter(file -> file.getFileName().toString().endsWith(".tmp")).toList());
+            }
+        }
+    }
+
+    @Test
+    void incrementalWithoutResolveDependency() throws Exception {
+        try (Fixture fixture = this.fixture("test/ObfClass.java")) {
+            final Mercury mercury = fixture.mercury();
+            mercury.getProcessors().add(new SourceProcessor() {
+                @Override
+                public int getFlags() {
+                    return FLAG_INCREMENTAL;
+                }
+
+                @Override
+                public void process(SourceContext context) {
+                }
+            });
+            assertThrows(IllegalStateException.class, () -> mercury.rewrite(fixture.in(), this.workDir.resolve("b")));
+        }
+    }
+
+    @Test
+    void dryRun() throws Exception {
+        try (Fixture fixture = this.fixture("test/ObfClass.java")) {
+            final Map<Path, Integer> changes = fixture.mercury().dryRun(fixture.in());
+            final Integer edits = changes.get(fixture.in().resolve("test/ObfClass.java"));
+            assertTrue(edits != null && edits > 0, changes.toString());
+
+            // Nothing is written
+            try (Stream<Path> files = Files.walk(this.workDir)) {
+                assertEquals(1, files.filter(Files::isRegularFile).count());
+            }
+        }
+    }
+
+    @Test
+    void dryRunListChanges() throws Exception {
+        try (Fixture fixture = this.fixture("NonNull.java")) {
+            fixture.mercury().getProcessors().add(new SourceRewriter() {
+                @Override
+                public void rewrite(RewriteContext context) {
+                    // Only the list of imports changes: one import is removed, another replaced
+                    final CompilationUnit unit = context.getCompilationUnit();
+                    final ASTRewrite rewrite = context.createASTRewrite();
+                    final ListRewrite imports = rewrite.getListRewrite(unit, CompilationUnit.IMPORTS_PROPERTY);
+                    imports.remove((ASTNode) unit.imports().get(0), null);
+                    final ImportDeclaration replacement = unit.getAST().newImportDeclaration();
+                    replacement.setName(unit.getAST().newName("java.util.List"));
+                    rewrite.replace((ASTNode) unit.imports().get(1), replacement, null);
+                }
+            });
+
+            final Map<Path, Integer> changes = fixture.mercury().dryRun(fixture.in());
+            assertEquals(Map.of(fixture.in().resolve("NonNull.java"), 2), changes);
+        }
+    }
+
+    @Test
+    void slowFiles() throws Exception {
+        try (Fixture fixture = this.fixture("test/ObfClass.java")) {
+            final Mercury mercury = fixture.mercury();
+            final Path source = fixture.in().resolve("test/ObfClass.java");
+
+            final List<FileTimings> slowFiles = Collections.synchronizedList(new ArrayList<>());
+            mercury.setSlowFileThreshold(Duration.ZERO);
+            mercury.setSlowFileHandler(slowFiles::add);
+            mercury.rewrite(fixture.in(), this.workDir.resolve("b"));
+
+            assertEquals(1, slowFiles.size());
+            final FileTimings timings = slowFiles.get(0);
+            assertEquals(source, timings.sourceFile());
+            assertEquals(Files.size(source), timings.size());
+            assertEquals(1, timings.processors().size());
+            assertTrue(timings.total().compareTo(Duration.ZERO) > 0);
+        }
+    }
+
+    @Test
+    void referenceIndex() throws Exception {
+        try (Fixture fixture = this.fixture("test/ObfClass.java", "NonNull.java")) {
+            final Mercury mercury = fixture.mercury();
+            final Path index = this.workDir.resolve("references.idx");
+            mercury.getProcessors().add(new ReferenceIndex(index));
+            mercury.rewrite(fixture.in(), this.workDir.resolve("b"));
+
+            final List<ReferenceIndex.Reference> references = ReferenceIndex.read(index);
+            assertTrue(references.stream().anyMatch(reference -> reference.kind() == ReferenceIndex.Kind.CLASS
+                    && reference.key().equals("test.ObfClass") && reference.mappedName().equals("Core")
+                    && reference.file().equals("test/ObfClass.java")), references.toString());
+            // Unmapped types are recorded too, like unmapped members
+            assertTrue(references.stream().anyMatch(reference -> reference.kind() == ReferenceIndex.Kind.CLASS
+                    && reference.key().equals("java.lang.String") && reference.mappedName().equals("java.lang.String")
+                    && reference.file().equals("test/ObfClass.java")), references.toString());
+
+            // Overlapping runs collect their references separately, each writes the complete index
+            final ExecutorService executor = Executors.newFixedThreadPool(4);
+            try {
+                final List<Future<?>> futures = new ArrayList<>();
+                for (int i = 0; i < 4; i++) {
+                    final Path out = this.workDir.resolve("c" + i);
+                    futures.add(executor.submit(() -> {
+                        mercury.rewrite(fixture.in(), out);
+                        return null;
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } finally {
+                executor.shutdown();
+            }
+            assertEquals(sorted(references), sorted(ReferenceIndex.read(index)));
+        }
+    }
+
+    @Test
+    void mappingCoverage() throws Exception {
+        try (Fixture fixture = this.fixture("test/ObfClass.java")) {
+            final Path report = this.workDir.resolve("coverage.txt");
+            fixture.mercury().getProcessors().add(new MappingCoverage(fixture.environment(), report));
+            fixture.mercury().rewrite(fixture.in(), this.workDir.resolve("b"));
+
+            final String actual = read(report);
+            assertTrue(actual.contains("\ttest/ObfClass\n"), actual);
+
+            // Overlapping runs count separately, each writes the complete report
+            final ExecutorService executor = Executors.newFixedThreadPool(4);
+            try {
+                final List<Future<?>> futures = new ArrayList<>();
+                for (int i = 0; i < 4; i++) {
+                    final Path out = this.workDir.resolve("c" + i);
+                    futures.add(executor.submit(() -> {
+                        fixture.mercury().rewrite(fixture.in(), out);
+                        return null;
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } finally {
+                executor.shutdown();
+            }
+            assertEquals(actual, read(report));
+        }
+    }
+
+    @Test
+    void repeatedRewritesReleaseState() throws Exception {
+        try (Fixture fixture = this.fixture("test/ObfClass.java", "NonNull.java")) {
+            final Mercury mercury = fixture.mercury();
+            final Path out = this.workDir.resolve("b");
+
+            // The ASTs and runs are only weakly referenced by the test
+            final List<WeakReference<Object>> references = new ArrayList<>();
+            mercury.getProcessors().add(context -> {
+                synchronized (references) {
+                    references.add(new WeakReference<>(context.getCompilationUnit()));
+                    references.add(new WeakReference<>(context.getRun()));
+                }
+            });
+
+            for (int i = 0; i < 50; i++) {
+                mercury.rewrite(fixture.in(), out);
+            }
+            assertEquals(200, references.size());
+
+            // System.gc() is only a hint, keep asking until the references are cleared or the deadline passed
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (references.stream().anyMatch(reference -> reference.get() != null) && System.nanoTime() < deadline) {
+                System.gc();
+                Thread.sleep(50);
+            }
+            assertTrue(references.stream().allMatch(reference -> reference.get() == null), "State of previous runs is retained");
+        }
+    }
+
+    @Test
+    void continueOnError() throws Exception {
+        try (Fixture fixture = this.fixture("test/ObfClass.java", "NonNull.java")) {
+            final Mercury mercury = fixture.mercury();
+            final Path in = fixture.in();
+            final Path out = this.workDir.resolve("b");
+            final AtomicBoolean broken = new AtomicBoolean();
+            mercury.getProcessors().add(0, new SourceProcessor() {
+                @Override
+                public int getFlags() {
+                    return FLAG_INCREMENTAL;
+                }
+
+                @Override
+                public String resolveDependency(String key) {
+                    return null;
+                }
+
+                @Override
+                public void process(SourceContext context) {
+                    if (broken.get() && context.getSourceFile().endsWith("NonNull.java")) {
+                        throw new IllegalStateException("Broken file");
+                    }
+                }
+            });
+            mercury.setContinueOnError(true);
+            mercury.setIncrementalIndex(this.workDir.resolve("mercury.index"));
+            final List<SourceError> errors = new ArrayList<>();
+            mercury.setErrorHandler(errors::add);
+            mercury.rewrite(in, out);
+            assertEquals(List.of(), errors);
+
+            // The file is processed again once it changed, and now fails
+            broken.set(true);
+            this.touch(in.resolve("NonNull.java"));
+            mercury.rewrite(in, out);
+            assertEquals(1, errors.size(), errors.toString());
+            assertEquals(in.resolve("NonNull.java"), errors.get(0).sourceFile());
+            assertEquals(SourceError.Stage.PROCESS, errors.get(0).stage());
+
+            // The failed file is copied unchanged, and not deleted as stale output of the previous run
+            assertEquals(read(in.resolve("NonNull.java")), read(out.resolve("NonNull.java")));
+            this.verify(out, "Core.java");
+
+            // Failed files are not in the index, so they are processed again
+            broken.set(false);
+            errors.clear();
+            Files.write(out.resolve("NonNull.java"), "failed".getBytes(StandardCharsets.UTF_8));
+            mercury.rewrite(in, out);
+            assertEquals(List.of(), errors);
+            assertEquals(read(in.resolve("NonNull.java")), read(out.resolve("NonNull.java")));
+        }
+    }
+
+    @Test
+    void writeFailure() throws Exception {
+        try (Fixture fixture = this.fixture("test/ObfClass.java", "NonNull.java")) {
+            final Mercury mercury = fixture.mercury();
+            final Path in = fixture.in();
+            final Path out = this.workDir.resolve("b");
+            mercury.setContinueOnError(true);
+            final List<SourceError> errors = new ArrayList<>();
+            mercury.setErrorHandler(errors::add);
+
+            // The output can't be written while a directory is in its place
+            Files.createDirectories(out.resolve("Core.java"));
+            mercury.rewrite(in, out);
+            assertEquals(1, errors.size(), errors.toString());
+            assertEquals(in.resolve("test/ObfClass.java"), errors.get(0).sourceFile());
+            assertEquals(SourceError.Stage.WRITE, errors.get(0).stage());
+
+            // The original is copied instead, the other file is still written
+            assertEquals(read(in.resolve("test/ObfClass.java")), read(out.resolve("test/ObfClass.java")));
+            assertEquals(read(in.resolve("NonNull.java")), read(out.resolve("NonNull.java")));
+        }
+    }
+
+    @Test
+    void parseFailure() throws Exception {
+        try (Fixture fixture = this.fixture("test/ObfClass.java", "NonNull.java", "JavadocTest.java")) {
+            final Mercury mercury = fixture.mercury();
+            final Path in = fixture.in();
+            final Path out = this.workDir.resolve("b");
+
+            // Resolving the deeply nested calls overflows the stack of the compiler
+            final StringBuilder source = new StringBuilder("class Deep {\n    int f(int i) {\n        return ");
+            source.append("f(".repeat(20000)).append('0').append(")".repeat(20000));
+            source.append(";\n    }\n}\n");
+            Files.write(in.resolve("Deep.java"), source.toString().getBytes(StandardCharsets.UTF_8));
+
+            mercury.setContinueOnError(true);
+            final List<SourceError> errors = new ArrayList<>();
+            mercury.setErrorHandler(errors::add);
+
+            // Use a small stack, so the overflow does not depend on the default stack size
+            final AtomicReference<Exception> failure = new AtomicReference<>();
+            final Thread thread = new Thread(null, () -> {
+                try {
+                    mercury.rewrite(in, out);
+                } catch (Exception e) {
+                    failure.set(e);
+                }
+            }, "Mercury test", 256 * 1024);
+            thread.start();
+            thread.join();
+            if (failure.get() != null) {
+                throw failure.get();
+            }
+
+            // Only the file that broke the compiler fails, the others are parsed again without it
+            assertEquals(1, errors.size(), errors.toString());
+            assertEquals(in.resolve("Deep.java"), errors.get(0).sourceFile());
+            assertEquals(SourceError.Stage.PARSE, errors.get(0).stage());
+            assertEquals(source.toString(), read(out.resolve("Deep.java")));
+            this.verify(out, "Core.java");
+            assertEquals(read(in.resolve("NonNull.java")), read(out.resolve("NonNull.java")));
+            assertTrue(Files.isRegularFile(out.resolve("JavadocTest.java")));
+        }
+    }
+
+    @Test
+    void fileTimeout() throws Exception {
+        try (Fixture fixture = this.fixture("test/ObfClass.java", "NonNull.java")) {
+            final Mercury mercury = fixture.mercury();
+            final Path in = fixture.in();
+            final Path out = this.workDir.resolve("b");
+            mercury.getProcessors().add(0, context -> {
+                if (context.getSourceFile().endsWith("NonNull.java")) {
+                    // Never finishes unless canceled
+                    while (true) {
+                        context.checkCanceled();
+                        Thread.onSpinWait();
+                    }
+                }
+            });
+            mercury.setFileTimeout(Duration.ofMillis(500));
+            final List<SourceError> errors = new ArrayList<>();
+            mercury.setErrorHandler(errors::add);
+
+            mercury.rewrite(in, out);
+            assertEquals(1, errors.size(), errors.toString());
+            assertEquals(in.resolve("NonNull.java"), errors.get(0).sourceFile());
+            assertEquals(SourceError.Stage.TIMEOUT, errors.get(0).stage());
+
+            // The file that timed out is copied unchanged, the other file is still rewritten
+            assertEquals(read(in.resolve("NonNull.java")), read(out.resolve("NonNull.java")));
+            this.verify(out, "Core.java");
+        }
+    }
+
+    @Test
+    void checkpointing() throws Exception {
+        try (Fixture fixture = this.fixture("test/ObfClass.java", "NonNull.java")) {
+            final Mercury mercury = fixture.mercury();
+            final Path out = this.workDir.resolve("b");
+
+            final AtomicInteger processed = new AtomicInteger();
+            final AtomicBoolean interrupt = new AtomicBoolean(true);
+            mercury.getProcessors().add(new SourceProcessor() {
+                @Override
+                public int getFlags() {
+                    return FLAG_INCREMENTAL;
+                }
+
+                @Override
+                public String resolveDependency(String key) {
+                    return null;
+                }
+
+                @Override
+                public void process(SourceContext context) {
+                    processed.incrementAndGet();
+                }
+
+                @Override
+                public void finish(Mercury mercury) {
+                    if (interrupt.get()) {
+                        throw new IllegalStateException("Interrupted");
+                    }
+                }
+            });
+            mercury.setCheckpointing(true);
+
+            assertThrows(IllegalStateException.class, () -> mercury.rewrite(fixture.in(), out));
+            assertEquals(2, processed.get());
+
+            // The files completed by the interrupted run are not processed again
+            interrupt.set(false);
+            mercury.rewrite(fixture.in(), out);
+            assertEquals(2, processed.get());
+            this.verify(out, "Core.java");
+            try (Stream<Path> files = Files.list(out)) {
+                assertTrue(files.noneMatch(file -> file.getFileName().toString().startsWith(".")), "Journal was not deleted");
+            }
+        }
+    }
+
+    @Test
+    void checkpointingIncremental() throws Exception {
+        try (Fixture fixture = this.fixture("test/ObfClass.java", "NonNull.java")) {
+            final Mercury mercury = fixture.mercury();
+            final Path in = fixture.in();
+            final Path out = this.workDir.resolve("b");
+
+            final AtomicInteger processed = new AtomicInteger();
+            final AtomicInteger failAt = new AtomicInteger(-1);
+            mercury.getProcessors().add(new SourceProcessor() {
+                @Override
+                public int getFlags() {
+                    return FLAG_INCREMENTAL;
+                }
+
+                @Override
+                public String resolveDependency(String key) {
+                    return null;
+                }
+
+                @Override
+                public void process(SourceContext context) {
+                    if (processed.incrementAndGet() == failAt.get()) {
+                        throw new IllegalStateException("Interrupted");
+                    }
+                }
+            });
+            mercury.setIncrementalIndex(this.workDir.resolve("mercury.index"));
+            mercury.setCheckpointing(true);
+            mercury.rewrite(in, out);
+            assertEquals(2, processed.get());
+
+            // Both files changed, but the rewrite is interrupted after the first one
+            this.touch(in.resolve("test/ObfClass.java"));
+            this.touch(in.resolve("NonNull.java"));
+            processed.set(0);
+            failAt.set(2);
+            assertThrows(RuntimeException.class, () -> mercury.rewrite(in, out));
+
+            // Only the remaining file is processed, and the output of the first one is kept
+            processed.set(0);
+            failAt.set(-1);
+            mercury.rewrite(in, out);
+            assertEquals(1, processed.get());
+            this.verify(out, "Core.java");
+            assertEquals(read(in.resolve("NonNull.java")), read(out.resolve("NonNull.java")));
+
+            // The file completed by the interrupted run was added to the index
+            processed.set(0);
+            mercury.rewrite(in, out);
+            assertEquals(0, processed.get());
+            this.verify(out, "Core.java");
+        }
+    }
+
+    @Test
+    void watch() throws Exception {
+        try (Fixture fixture = this.fixture("test/ObfClass.java")) {
+            final Path in = fixture.in();
+            final Path out = this.workDir.resolve("b");
+            Files.write(in.resolve("User.java"),
+                    "public class User {\n    String get() {\n        return test.ObfClass.name();\n    }\n}\n".getBytes(StandardCharsets.UTF_8));
+            Files.write(in.resolve("Gone.java"), "public class Gone {\n}\n".getBytes(StandardCharsets.UTF_8));
+            Files.createDirectories(in.resolve("pkg"));
+            Files.write(in.resolve("pkg/Moved.java"), "package one;\n\npublic class Moved {\n}\n".getBytes(StandardCharsets.UTF_8));
+
+            final BlockingQueue<Object> batches = new LinkedBlockingQueue<>();
+            final Thread watcher = new Thread(() -> {
+                try {
+                    fixture.mercury().watch(in, out, Duration.ofSeconds(2), new SourceWatcher.Listener() {
+                        @Override
+                        public void rewritten(Set<Path> sourceFiles) {
+                            batches.add(sourceFiles);
+                        }
+
+                        @Override
+                        public void failed(Set<Path> sourceFiles, Exception e) {
+                            batches.add(e);
+                        }
+                    });
+                } catch (Exception e) {
+                    batches.add(e);
+                }
+            }, "Mercury watch test");
+            watcher.start();
+            try {
+                // The directory is watched before the initial rewrite, so changes after it are not missed
+                final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+                while (!Files.isRegularFile(out.resolve("one/Moved.java")) && System.nanoTime() < deadline) {
+                    Thread.sleep(50);
+                }
+                assertTrue(Files.isRegularFile(out.resolve("User.java")));
+                assertTrue(Files.isRegularFile(out.resolve("Gone.java")));
+                Files.write(out.resolve("User.java"), "stale".getBytes(StandardCharsets.UTF_8));
+
+                // Changed within the debounce time, so they are rewritten together
+                Files.write(in.resolve("test/ObfClass.java"), "\n// changed\n".getBytes(StandardCharsets.UTF_8),
+                        StandardOpenOption.APPEND);
+                Files.delete(in.resolve("Gone.java"));
+                Files.write(in.resolve("pkg/Moved.java"), "package two;\n\npublic class Moved {\n}\n".getBytes(StandardCharsets.UTF_8));
+
+                final Object batch = batches.poll(30, TimeUnit.SECONDS);
+                if (batch instanceof Exception) {
+                    throw (Exception) batch;
+                }
+                assertEquals(Set.of(in.resolve("test/ObfClass.java"), in.resolve("User.java"), in.resolve("Gone.java"),
+                        in.resolve("pkg/Moved.java")), batch);
+            } finally {
+                watcher.interrupt();
+                watcher.join();
+            }
+
+            // The file referring to the changed class was rewritten as well
+            final String user = read(out.resolve("User.java"));
+            assertTrue(user.contains("Core.firstName()"), user);
+            assertTrue(read(out.resolve("Core.java")).contains("// changed"));
+            // The outputs of the deleted file and of the previous package are removed
+            assertFalse(Files.exists(out.resolve("Gone.java")));
+            assertFalse(Files.exists(out.resolve("one/Moved.java")));
+            assertTrue(Files.isRegularFile(out.resolve("two/Moved.java")));
+        }
+    }
+
+    @Test
+    void classPathPruning() throws Exception {
+        // The superclass of the library class is in a second entry, which the sources never refer to
+        final Path parent = this.compile("parent", "other/Parent.java", "package other;\n\npublic class Parent {\n}\n");
+        final Path base = this.compile("base", "lib/Base.java", "package lib;\n\npublic class Base extends other.Parent {\n}\n", parent);
+        final Path unused = this.compile("unused", "unused/Unused.java", "package unused;\n\npublic class Unused {\n}\n");
+
+        final Path in = this.workDir.resolve("a");
+        Files.createDirectories(in);
+        Files.write(in.resolve("Child.java"), "public class Child extends lib.Base {\n}\n".getBytes(StandardCharsets.UTF_8));
+
+        final List<String> superclasses = new ArrayList<>();
+        final List<Integer> problems = new ArrayList<>();
+        final Mercury mercury = new Mercury();
+        mercury.setSourceCompatibility(JavaCore.VERSION_11);
+        mercury.getClassPath().addAll(List.of(unused, parent, base));
+        mercury.setClassPathPruning(true);
+        mercury.getProcessors().add(new SourceProcessor() {
+            @Override
+            public int getFlags() {
+                return FLAG_RESOLVE_BINDINGS;
+            }
+
+            @Override
+            public void process(SourceContext context) {
+                final ITypeBinding type = ((TypeDeclaration) context.getCompilationUnit().types().get(0)).resolveBinding();
+                superclasses.add(type.getSuperclass().getSuperclass().getQualifiedName());
+                for (IProblem problem : context.getCompilationUnit().getProblems()) {
+                    problems.add(problem.getID());
+                }
+            }
+        });
+        mercury.process(in);
+
+        // The file missed the pruned entry, so it was only processed once parsed with the full classpath
+        assertEquals(List.of("other.Parent"), superclasses);
+        assertEquals(List.of(), problems);
+    }
+
+    @Test
+    void nameEnvironment() throws Exception {
+        final InMemoryNameEnvironment environment = new InMemoryNameEnvironment();
+        try (Fixture fixture = this.fixture(environment)) {
+            // The remapped class is neither a source file nor on the classpath, only read by tiny-remapper
+            Files.write(fixture.in().resolve("Uses.java"),
+                    "public class Uses {\n    String get() {\n        return test.ObfClass.name();\n    }\n}\n".getBytes(StandardCharsets.UTF_8));
+            assertTrue(environment.isPackage("test"));
+
+            final List<Integer> problems = Collections.synchronizedList(new ArrayList<>());
+            final Mercury mercury = fixture.mercury();
+            mercury.getProcessors().add(0, new SourceProcessor() {
+                @Override
+                public int getFlags() {
+                    return FLAG_RESOLVE_BINDINGS | FLAG_THREAD_SAFE;
+                }
+
+                @Override
+                public void process(SourceContext context) {
+                    for (IProblem problem : context.getCompilationUnit().getProblems()) {
+                        problems.add(problem.getID());
+                    }
+                }
+            });
+
+            final Path out = this.workDir.resolve("b");
+            mercury.rewrite(fixture.in(), out);
+
+            assertEquals(List.of(), problems);
+            final String actual = read(out.resolve("Uses.java"));
+            assertTrue(actual.contains("Core.firstName()"), actual);
+        }
+    }
+
+    /**
+     * The mappings and a {@link Mercury} instance remapping with them,
+     * shared by most tests. The temporary directory is removed by JUnit,
+     * even if the test fails.
+     *
+     * @param in The source directory containing the copied test classes
+     * @param tinyRemapper The remapper the mappings are loaded into
+     * @param mercury The Mercury instance, with a {@link MercuryRemapper}
+     */
+    record Fixture(Path in, TinyRemapper tinyRemapper, Mercury mercury) implements AutoCloseable {
+
+        TrEnvironment environment() {
+            return this.tinyRemapper.getEnvironment();
+        }
+
+        @Override
+        public void close() {
+            this.tinyRemapper.finish();
+        }
+
+    }
+
+    Fixture fixture(final String... files) throws IOException {
+        return this.fixture(null, files);
+    }
+
+    /**
+     * Creates the fixture, with the classes read by tiny-remapper shared
+     * with Mercury through the given name environment.
+     */
+    Fixture fixture(@Nullable final InMemoryNameEnvironment environment, final String... files) throws IOException {
+        final Path in = this.workDir.resolve("a");
+        Files.createDirectories(in);
+        for (String file : files) {
+            this.copy(in, file);
+        }
+
+        final TinyRemapper tinyRemapper = this.createRemapper(mappings(), environment);
+        final Mercury mercury = new Mercury();
+        mercury.setSourceCompatibility(JavaCore.VERSION_11);
+        mercury.setNameEnvironment(environment);
+        mercury.getProcessors().add(MercuryRemapper.create(tinyRemapper.getEnvironment()));
+        return new Fixture(in, tinyRemapper, mercury);
+    }
+
+    TinyRemapper createRemapper() throws IOException {
+        return this.createRemapper(mappings());
+    }
+
+    static String mappings() throws IOException {
+        try (InputStream in = RemappingTests.class.getResourceAsStream("/test.jam")) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    TinyRemapper createRemapper(final String mappings) throws IOException {
+        return this.createRemapper(mappings, null);
+    }
+
+    TinyRemapper createRemapper(final String mappings, @Nullable final InMemoryNameEnvironment environment) throws IOException {
+        MemoryMappingTree mappingTree = new MemoryMappingTree();
+
+        try (BufferedReader bufferedReader = new BufferedReader(new StringReader(mappings))) {
+            JamFileReader.read(bufferedReader, mappingTree);
+        }
+
+        TinyRemapper.Builder builder = TinyRemapper.newRemapper()
+                .withMappings(TinyUtils.createMappingProvider(mappingTree, "source", "target"))
+                .propagateBridges(TinyRemapper.LinkedMethodPropagation.COMPATIBLE);
+        if (environment != null) {
+            builder.extraAnalyzeVisitor(environment.createAnalyzeVisitorProvider());
+        }
+        TinyRemapper tinyRemapper = builder.build();
+
+        tinyRemapper.readInputs(Paths.get("build/classes/java/testInput"));
+        return tinyRemapper;
+    }
+
     void copy(final Path dir, final String file) throws IOException {
         final Path path = dir.resolve(file);
 
@@ -191,6 +1214,37 @@ void verify(final Path dir, final String file) throws IOException {
         assertEquals(expected, actual, "Remapped code for " + file + " does not match expected");
     }
 
+    Path compile(final String name, final String file, final String source, final Path... classPath) throws IOException {
+        final Path sourceFile = this.workDir.resolve(name + "-src").resolve(file);
+        final Path classes = this.workDir.resolve(name);
+        Files.createDirectories(sourceFile.getParent());
+        Files.createDirectories(classes);
+        Files.write(sourceFile, source.getBytes(StandardCharsets.UTF_8));
 
+        final List<String> args = new ArrayList<>(List.of("-d", classes.toString()));
+        if (classPath.length > 0) {
+            args.add("-cp");
+            args.add(Stream.of(classPath).map(Path::toString).collect(Collectors.joining(File.pathSeparator)));
+        }
+        args.add(sourceFile.toString());
+        assertEquals(0, ToolProvider.getSystemJavaCompiler().run(null, null, null, args.toArray(new String[0])), file);
+        return classes;
+    }
+
+    void touch(final Path file) throws IOException {
+        // Make sure the change is noticed, even if the file system only stores seconds
+        Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 2000));
+    }
+
+    static List<ReferenceIndex.Reference> sorted(final List<ReferenceIndex.Reference> references) {
+        final List<ReferenceIndex.Reference> result = new ArrayList<>(references);
+        result.sort(Comparator.comparing(ReferenceIndex.Reference::file).thenComparingInt(ReferenceIndex.Reference::offset)
+                .thenComparing(ReferenceIndex.Reference::kind).thenComparing(ReferenceIndex.Reference::key));
+        return result;
+    }
+
+    static String read(final Path file) throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    }
 
 }
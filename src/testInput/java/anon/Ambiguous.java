@@ -0,0 +1,22 @@
+/*
+ * Copyright (c) 2018 Cadix Development (https://www.cadixdev.org)
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which accompanies this distribution,
+ * and is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package anon;
+
+public class Ambiguous {
+    public void testMethod() {
+        new Object() { // Ambiguous$1 - same structure as Ambiguous$2, so matched by its index
+            public void name() {}
+        };
+        new Object() { // Ambiguous$2
+            public void name() {}
+        };
+    }
+}